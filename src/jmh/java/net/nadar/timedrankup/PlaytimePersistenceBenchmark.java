@@ -0,0 +1,65 @@
+package net.nadar.timedrankup;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+// Throughput of a save: adding an increment to every player's total, serializing the totals into the journal and
+// updating the mapped store, which is what the persistence worker does with each batch the engine hands it
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PlaytimePersistenceBenchmark {
+
+	@Param({"1000", "10000", "100000"})
+	private int players;
+
+	private Path directory;
+	private PlaytimeJournal journal;
+	private Map<UUID, Long> playtimes;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		Random random = new Random(42);
+		playtimes = new HashMap<>(players * 2);
+		for (int i = 0; i < players; i++) {
+			playtimes.put(new UUID(random.nextLong(), random.nextLong()), (long) random.nextInt(1_000_000));
+		}
+		directory = Files.createTempDirectory("timedrankup-bench");
+		journal = new PlaytimeJournal(directory.resolve("playtime.dat"), directory.resolve("playtime.txt"), new Metrics());
+		journal.load((playerId, playtime) -> {
+		});
+		journal.append(playtimes);
+	}
+
+	// Keep the journal from growing across iterations, as the worker's periodic compaction does
+	@Setup(Level.Iteration)
+	public void compact() {
+		journal.compact();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		journal.close();
+		try (Stream<Path> files = Files.walk(directory)) {
+			files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+		}
+	}
+
+	@Benchmark
+	public void appendAll() throws IOException {
+		journal.addPlaytime(playtimes);
+	}
+}
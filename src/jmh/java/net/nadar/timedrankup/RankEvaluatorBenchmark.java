@@ -0,0 +1,57 @@
+package net.nadar.timedrankup;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// Cost of one rank decision against a synthetic ladder and player population; no server or LuckPerms involved
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RankEvaluatorBenchmark {
+
+	@Param({"1000", "10000", "100000"})
+	private int players;
+
+	@Param({"5", "50"})
+	private int ranks;
+
+	private RankLadder ladder;
+	private int[] membershipRankIndexes;
+	private long[] playtimes;
+	private int next;
+
+	@Setup
+	public void setup() {
+		Random random = new Random(42);
+		String[] names = new String[ranks];
+		long[] thresholds = new long[ranks];
+		for (int i = 0; i < ranks; i++) {
+			names[i] = "Rank" + i;
+			thresholds[i] = i * 3600L;
+		}
+		ladder = RankLadder.compile(names, thresholds);
+
+		// A mix of players in no ladder group and players somewhere on the ladder, with playtimes around it
+		membershipRankIndexes = new int[players];
+		playtimes = new long[players];
+		for (int i = 0; i < players; i++) {
+			membershipRankIndexes[i] = random.nextInt(ranks + 1) - 1;
+			playtimes[i] = random.nextInt((ranks + 1) * 3600);
+		}
+	}
+
+	@Benchmark
+	public long evaluate() {
+		int player = next;
+		next = next + 1 == players ? 0 : next + 1;
+		long playtime = playtimes[player];
+		int current = RankEvaluator.currentRankIndex(ladder, membershipRankIndexes[player], playtime);
+		int target = RankEvaluator.promotionTarget(ladder, current, playtime);
+		return target != -1 ? target : RankEvaluator.nextCheckDelay(ladder, current, playtime);
+	}
+}
@@ -0,0 +1,79 @@
+package net.nadar.timedrankup;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+// Watches a few files in one directory and runs the callback on its own thread after any of them changes. Editors
+// often write a file in several steps, so changes are collected until the directory has been quiet for a moment.
+public class ConfigWatcher {
+
+	private static final Logger LOGGER = LogManager.getLogger();
+	private static final long QUIET_MILLIS = 250;
+	private final WatchService watchService;
+	private final Set<String> fileNames;
+	private final Runnable onChange;
+	private final Thread thread;
+
+	public ConfigWatcher(Path directory, Set<String> fileNames, Runnable onChange) throws IOException {
+		this.watchService = FileSystems.getDefault().newWatchService();
+		this.fileNames = fileNames;
+		this.onChange = onChange;
+		// Replacing a file by moving a new one into place shows up as a create
+		directory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+		this.thread = new Thread(this::run, "TimedRankup-ConfigWatcher");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	public void close() {
+		try {
+			watchService.close();
+		} catch (IOException e) {
+			LOGGER.error("Error closing config watcher: {}", e.getMessage());
+		}
+	}
+
+	private void run() {
+		try {
+			while (true) {
+				boolean changed = drain(watchService.take());
+				WatchKey key;
+				while ((key = watchService.poll(QUIET_MILLIS, TimeUnit.MILLISECONDS)) != null) {
+					changed |= drain(key);
+				}
+				if (changed) {
+					try {
+						onChange.run();
+					} catch (RuntimeException e) {
+						LOGGER.error("Error reloading config files: {}", e.getMessage());
+					}
+				}
+			}
+		} catch (InterruptedException | ClosedWatchServiceException e) {
+			// Closed on shutdown
+		}
+	}
+
+	// Whether the key reported a change to one of the watched files
+	private boolean drain(WatchKey key) {
+		boolean changed = false;
+		for (WatchEvent<?> event : key.pollEvents()) {
+			if (event.kind() == StandardWatchEventKinds.OVERFLOW || (event.context() instanceof Path && fileNames.contains(event.context().toString()))) {
+				changed = true;
+			}
+		}
+		key.reset();
+		return changed;
+	}
+}
@@ -0,0 +1,115 @@
+package net.nadar.timedrankup;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+// Write-behind for a config file. Callers hand over the latest immutable value and return straight away; the value
+// is serialized and written on a background thread once no newer one has arrived for a moment, so a burst of edits
+// costs one write. The file is written next to its final name and moved into place so nobody reads half of it.
+public class ConfigWriter<T> {
+
+	private static final Logger LOGGER = LogManager.getLogger();
+	private final Path file;
+	private final long debounceMillis;
+	private final Serializer<T> serializer;
+	private final ScheduledExecutorService executor;
+	private T pending; // Guarded by this; the newest value not written yet
+	private boolean scheduled; // Guarded by this
+	private volatile boolean writing;
+
+	public ConfigWriter(Path file, long debounceMillis, Serializer<T> serializer) {
+		this.file = file;
+		this.debounceMillis = debounceMillis;
+		this.serializer = serializer;
+		this.executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "TimedRankup-ConfigWriter");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	// Replaces whatever was waiting to be written. The write happens the debounce delay after the first value that
+	// found nothing waiting, so a steady stream of edits is still written regularly.
+	public void write(T value) {
+		synchronized (this) {
+			pending = value;
+			if (scheduled) {
+				return;
+			}
+			scheduled = true;
+		}
+		executor.schedule(this::writeWhenQuiet, debounceMillis, TimeUnit.MILLISECONDS);
+	}
+
+	// True from a write until the file holds that value, e.g. so a reload does not pick up the older file meanwhile
+	public boolean isPending() {
+		synchronized (this) {
+			if (pending != null) {
+				return true;
+			}
+		}
+		return writing;
+	}
+
+	// Writes anything still waiting and waits for it, e.g. before the server stops. The thread stays around for the
+	// next server an integrated client starts.
+	public void flush() {
+		try {
+			executor.submit(this::writePending).get(10, TimeUnit.SECONDS);
+		} catch (ExecutionException | TimeoutException e) {
+			LOGGER.error("Timed out waiting for {} to be written.", file.getFileName());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void writeWhenQuiet() {
+		synchronized (this) {
+			scheduled = false;
+		}
+		writePending();
+	}
+
+	// Runs on the background thread
+	private void writePending() {
+		T value;
+		synchronized (this) {
+			value = pending;
+			pending = null;
+			if (value == null) {
+				return;
+			}
+			writing = true;
+		}
+		Path temporaryFile = file.resolveSibling(file.getFileName() + ".tmp");
+		try {
+			Files.createDirectories(file.getParent());
+			try (Writer writer = Files.newBufferedWriter(temporaryFile, StandardCharsets.UTF_8)) {
+				serializer.write(value, writer);
+			}
+			Files.move(temporaryFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			LOGGER.info("Configuration file updated: {}", file);
+		} catch (IOException | RuntimeException e) {
+			LOGGER.error("Error saving configuration file: {}", e.getMessage());
+		} finally {
+			writing = false;
+		}
+	}
+
+	@FunctionalInterface
+	public interface Serializer<T> {
+		void write(T value, Writer writer) throws IOException;
+	}
+}
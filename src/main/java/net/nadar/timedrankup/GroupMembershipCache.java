@@ -0,0 +1,133 @@
+package net.nadar.timedrankup;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Per-player cache of the permission group information TimedRankup needs: which ladder rank the player
+// inherits, whether they are in an excluded group and which of the groups rank requirements name they are
+// in. Entries are dropped whenever the backend reports that the player's (or any group's) data changed, so
+// a sweep only calls into the backend after a change.
+public class GroupMembershipCache implements PermissionBackend.ChangeListener {
+
+	private final PermissionBackend backend;
+	private final Metrics metrics;
+	private final InvalidationListener listener;
+	private final Map<UUID, Membership> memberships = new ConcurrentHashMap<>();
+	// Bumped on every invalidation so a resolution that raced with one is not cached
+	private final AtomicLong generation = new AtomicLong();
+
+	public GroupMembershipCache(PermissionBackend backend, Metrics metrics, InvalidationListener listener) {
+		this.backend = backend;
+		this.metrics = metrics;
+		this.listener = listener;
+		backend.subscribe(this);
+	}
+
+	// The backend's subscriptions are closed by whoever owns the backend
+	public void close() {
+		memberships.clear();
+	}
+
+	// Returns null if the backend has not loaded the player
+	public Membership get(UUID playerId, RankLadder ladder, Set<String> excludedGroups) {
+		Membership membership = memberships.get(playerId);
+		if (membership != null && membership.ladder == ladder && membership.excludedGroups == excludedGroups) {
+			metrics.membershipHits.increment();
+			return membership;
+		}
+		metrics.membershipMisses.increment();
+
+		long resolvedAt = generation.get();
+		long start = System.nanoTime();
+		List<String> groupNames;
+		try {
+			groupNames = backend.inheritedGroups(playerId);
+		} finally {
+			metrics.luckPermsLookup.recordSince(start);
+		}
+		if (groupNames == null) {
+			return null;
+		}
+		membership = Membership.resolve(groupNames, ladder, excludedGroups);
+		if (generation.get() == resolvedAt) {
+			memberships.put(playerId, membership);
+		}
+		return membership;
+	}
+
+	public void invalidate(UUID playerId) {
+		generation.incrementAndGet();
+		memberships.remove(playerId);
+		listener.onInvalidated(playerId);
+	}
+
+	public void invalidateAll() {
+		generation.incrementAndGet();
+		memberships.clear();
+		listener.onInvalidatedAll();
+	}
+
+	@Override
+	public void onUserChanged(UUID playerId) {
+		invalidate(playerId);
+	}
+
+	@Override
+	public void onUserUnloaded(UUID playerId) {
+		memberships.remove(playerId);
+	}
+
+	@Override
+	public void onAllChanged() {
+		invalidateAll();
+	}
+
+	// Called from whichever thread the backend reports changes on
+	public interface InvalidationListener {
+		void onInvalidated(UUID playerId);
+
+		void onInvalidatedAll();
+	}
+
+	public static final class Membership {
+		// Identity of the ladder and exclusion set this was resolved against; a config change makes it stale
+		private final RankLadder ladder;
+		private final Set<String> excludedGroups;
+		public final int rankIndex; // Ladder index of the first inherited ladder group, or -1
+		public final boolean excluded;
+		public final long groups; // Bits of the ladder's requirement groups the player inherits
+
+		private Membership(RankLadder ladder, Set<String> excludedGroups, int rankIndex, boolean excluded, long groups) {
+			this.ladder = ladder;
+			this.excludedGroups = excludedGroups;
+			this.rankIndex = rankIndex;
+			this.excluded = excluded;
+			this.groups = groups;
+		}
+
+		// Works out the membership from the names of the groups a player inherits
+		public static Membership resolve(List<String> groupNames, RankLadder ladder, Set<String> excludedGroups) {
+			int rankIndex = -1;
+			boolean excluded = false;
+			long groups = 0;
+			for (int i = 0; i < groupNames.size(); i++) {
+				String groupName = groupNames.get(i);
+				if (rankIndex == -1) {
+					rankIndex = ladder.indexOf(groupName);
+				}
+				if (!excluded && excludedGroups.contains(RankLadder.foldCase(groupName))) {
+					excluded = true;
+				}
+				int bit = ladder.groupBit(groupName);
+				if (bit >= 0) {
+					groups |= 1L << bit;
+				}
+			}
+			return new Membership(ladder, excludedGroups, rankIndex, excluded, groups);
+		}
+	}
+}
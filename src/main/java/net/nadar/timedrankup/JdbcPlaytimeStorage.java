@@ -0,0 +1,214 @@
+package net.nadar.timedrankup;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+// PlaytimeStorage in a SQL database shared by every server of a network. Each save is one batch of upserts that
+// add to the stored totals, so servers never overwrite each other's time. Works with SQLite and PostgreSQL
+// (INSERT ... ON CONFLICT) and with MySQL/MariaDB (ON DUPLICATE KEY UPDATE); the JDBC driver has to be on the
+// server's classpath.
+public class JdbcPlaytimeStorage implements PlaytimeStorage {
+
+	private static final Logger LOGGER = LogManager.getLogger();
+	private static final String TABLE = "timedrankup_playtime";
+	private static final int ROW_SIZE = 36 + 8; // CHAR(36) uuid and BIGINT playtime, as sent in each upsert
+	private final String url;
+	private final String username;
+	private final String password;
+	private final String upsertSql;
+	private final BlockingQueue<Connection> idleConnections;
+	private final int poolSize;
+	private final Metrics metrics;
+	private int openConnections = 0; // Guarded by idleConnections
+
+	public JdbcPlaytimeStorage(String url, String username, String password, int poolSize, Metrics metrics) throws IOException {
+		this.url = url;
+		this.username = username;
+		this.password = password;
+		this.poolSize = Math.max(poolSize, 1);
+		this.metrics = metrics;
+		this.idleConnections = new ArrayBlockingQueue<>(this.poolSize);
+		boolean mysql = url.startsWith("jdbc:mysql:") || url.startsWith("jdbc:mariadb:");
+		this.upsertSql = mysql
+				? "INSERT INTO " + TABLE + " (uuid, playtime) VALUES (?, ?) ON DUPLICATE KEY UPDATE playtime = playtime + VALUES(playtime)"
+				: "INSERT INTO " + TABLE + " (uuid, playtime) VALUES (?, ?) ON CONFLICT (uuid) DO UPDATE SET playtime = " + TABLE + ".playtime + excluded.playtime";
+
+		Connection connection = borrow();
+		try (Statement statement = connection.createStatement()) {
+			statement.executeUpdate("CREATE TABLE IF NOT EXISTS " + TABLE + " (uuid CHAR(36) NOT NULL PRIMARY KEY, playtime BIGINT NOT NULL)");
+		} catch (SQLException e) {
+			discard(connection);
+			throw new IOException("Could not create the playtime table: " + e.getMessage(), e);
+		}
+		release(connection);
+	}
+
+	@Override
+	public void loadAll(PlaytimeStore.PlaytimeConsumer sink) throws IOException {
+		Connection connection = borrow();
+		try (Statement statement = connection.createStatement();
+			 ResultSet rows = statement.executeQuery("SELECT uuid, playtime FROM " + TABLE)) {
+			while (rows.next()) {
+				try {
+					sink.accept(UUID.fromString(rows.getString(1)), rows.getLong(2));
+				} catch (IllegalArgumentException e) {
+					LOGGER.warn("Skipping malformed playtime row: {}", rows.getString(1));
+				}
+			}
+		} catch (SQLException e) {
+			discard(connection);
+			throw new IOException(e.getMessage(), e);
+		}
+		release(connection);
+	}
+
+	@Override
+	public boolean isShared() {
+		return true;
+	}
+
+	@Override
+	public long load(UUID playerId) throws IOException {
+		Connection connection = borrow();
+		long playtime;
+		try (PreparedStatement statement = connection.prepareStatement("SELECT playtime FROM " + TABLE + " WHERE uuid = ?")) {
+			statement.setString(1, playerId.toString());
+			try (ResultSet rows = statement.executeQuery()) {
+				playtime = rows.next() ? rows.getLong(1) : 0L;
+			}
+		} catch (SQLException e) {
+			discard(connection);
+			throw new IOException(e.getMessage(), e);
+		}
+		release(connection);
+		return playtime;
+	}
+
+	@Override
+	public void addPlaytime(Map<UUID, Long> seconds) throws IOException {
+		if (seconds.isEmpty()) {
+			return;
+		}
+		Connection connection = borrow();
+		try {
+			connection.setAutoCommit(false);
+			try (PreparedStatement statement = connection.prepareStatement(upsertSql)) {
+				for (Map.Entry<UUID, Long> entry : seconds.entrySet()) {
+					statement.setString(1, entry.getKey().toString());
+					statement.setLong(2, entry.getValue());
+					statement.addBatch();
+				}
+				statement.executeBatch();
+				connection.commit();
+			} catch (SQLException e) {
+				connection.rollback();
+				throw e;
+			} finally {
+				connection.setAutoCommit(true);
+			}
+		} catch (SQLException e) {
+			discard(connection);
+			throw new IOException(e.getMessage(), e);
+		}
+		release(connection);
+		metrics.bytesWritten.add((long) seconds.size() * ROW_SIZE);
+	}
+
+	@Override
+	public boolean maintain() {
+		return false;
+	}
+
+	// Every write is committed already; idle connections are closed and the pool opens new ones when needed
+	@Override
+	public void flush() {
+		close();
+	}
+
+	@Override
+	public void close() {
+		synchronized (idleConnections) {
+			Connection connection;
+			while ((connection = idleConnections.poll()) != null) {
+				closeQuietly(connection);
+				openConnections--;
+			}
+		}
+	}
+
+	// Hands out an idle connection, opens a new one while the pool has room, or waits for one to be released
+	private Connection borrow() throws IOException {
+		try {
+			while (true) {
+				Connection connection;
+				boolean open = false;
+				synchronized (idleConnections) {
+					connection = idleConnections.poll();
+					if (connection == null && openConnections < poolSize) {
+						openConnections++;
+						open = true;
+					}
+				}
+				if (open) {
+					try {
+						return DriverManager.getConnection(url, username, password);
+					} catch (SQLException e) {
+						synchronized (idleConnections) {
+							openConnections--;
+						}
+						throw new IOException("Could not connect to " + url + ": " + e.getMessage(), e);
+					}
+				}
+				if (connection == null) {
+					connection = idleConnections.poll(5, TimeUnit.SECONDS);
+					if (connection == null) {
+						throw new IOException("Timed out waiting for a database connection");
+					}
+				}
+				if (connection.isValid(2)) {
+					return connection;
+				}
+				discard(connection);
+			}
+		} catch (SQLException e) {
+			throw new IOException(e.getMessage(), e);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting for a database connection", e);
+		}
+	}
+
+	private void release(Connection connection) {
+		if (!idleConnections.offer(connection)) {
+			discard(connection);
+		}
+	}
+
+	private void discard(Connection connection) {
+		closeQuietly(connection);
+		synchronized (idleConnections) {
+			openConnections--;
+		}
+	}
+
+	private static void closeQuietly(Connection connection) {
+		try {
+			connection.close();
+		} catch (SQLException e) {
+			LOGGER.error("Error closing database connection: {}", e.getMessage());
+		}
+	}
+}
@@ -0,0 +1,92 @@
+package net.nadar.timedrankup;
+
+import net.luckperms.api.LuckPerms;
+import net.luckperms.api.context.ImmutableContextSet;
+import net.luckperms.api.event.EventBus;
+import net.luckperms.api.event.EventSubscription;
+import net.luckperms.api.event.group.GroupDataRecalculateEvent;
+import net.luckperms.api.event.node.NodeMutateEvent;
+import net.luckperms.api.event.user.UserDataRecalculateEvent;
+import net.luckperms.api.event.user.UserUnloadEvent;
+import net.luckperms.api.model.group.Group;
+import net.luckperms.api.model.user.User;
+import net.luckperms.api.node.NodeType;
+import net.luckperms.api.node.types.InheritanceNode;
+import net.luckperms.api.query.QueryOptions;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+
+// PermissionBackend on top of the LuckPerms API
+public class LuckPermsBackend implements PermissionBackend {
+
+	private final LuckPerms luckPerms;
+	private final List<EventSubscription<?>> subscriptions = new ArrayList<>();
+
+	public LuckPermsBackend(LuckPerms luckPerms) {
+		this.luckPerms = luckPerms;
+	}
+
+	@Override
+	public List<String> inheritedGroups(UUID playerId) {
+		User user = luckPerms.getUserManager().getUser(playerId);
+		return user != null ? groupNames(user) : null;
+	}
+
+	@Override
+	public CompletableFuture<List<String>> loadInheritedGroups(UUID playerId) {
+		// LuckPerms unloads users it loaded this way again once they have been idle for a while
+		return luckPerms.getUserManager().loadUser(playerId).thenApply(user -> user != null ? groupNames(user) : null);
+	}
+
+	private static List<String> groupNames(User user) {
+		Collection<Group> groups = user.getInheritedGroups(QueryOptions.nonContextual());
+		List<String> groupNames = new ArrayList<>(groups.size());
+		for (Group group : groups) {
+			groupNames.add(group.getName());
+		}
+		return groupNames;
+	}
+
+	// Like the command, refuses groups LuckPerms does not know, so a misspelt rank never strips a player's groups
+	@Override
+	public CompletableFuture<Void> setParentGroup(UUID playerId, String group) {
+		return luckPerms.getGroupManager().loadGroup(group).thenCompose(loaded -> {
+			if (loaded.isEmpty()) {
+				return CompletableFuture.failedFuture(new IllegalArgumentException("LuckPerms has no group named " + group));
+			}
+			Group parent = loaded.get();
+			return luckPerms.getUserManager().modifyUser(playerId, user -> {
+				user.data().clear(ImmutableContextSet.empty(), NodeType.INHERITANCE::matches);
+				user.data().add(InheritanceNode.builder(parent).build());
+				user.setPrimaryGroup(parent.getName());
+			});
+		});
+	}
+
+	@Override
+	public void subscribe(ChangeListener listener) {
+		EventBus eventBus = luckPerms.getEventBus();
+		subscriptions.add(eventBus.subscribe(UserDataRecalculateEvent.class, event -> listener.onUserChanged(event.getUser().getUniqueId())));
+		subscriptions.add(eventBus.subscribe(UserUnloadEvent.class, event -> listener.onUserUnloaded(event.getUser().getUniqueId())));
+		subscriptions.add(eventBus.subscribe(NodeMutateEvent.class, event -> {
+			if (event.isUser()) {
+				listener.onUserChanged(((User) event.getTarget()).getUniqueId());
+			} else {
+				listener.onAllChanged();
+			}
+		}));
+		subscriptions.add(eventBus.subscribe(GroupDataRecalculateEvent.class, event -> listener.onAllChanged()));
+	}
+
+	@Override
+	public void close() {
+		for (EventSubscription<?> subscription : subscriptions) {
+			subscription.close();
+		}
+		subscriptions.clear();
+	}
+}
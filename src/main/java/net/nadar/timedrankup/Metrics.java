@@ -0,0 +1,221 @@
+package net.nadar.timedrankup;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+// Counters, gauges and latency histograms for the work TimedRankup does on and off the server thread. Recording
+// never allocates or locks, so it is cheap enough to leave on the tick path. Metrics are registered once at
+// startup and read by /timedrankup stats and the Prometheus exporter.
+public class Metrics {
+
+	private static final String PREFIX = "timedrankup_";
+	private final List<Counter> counters = new ArrayList<>();
+	private final List<Gauge> gauges = new ArrayList<>();
+	private final List<Timer> timers = new ArrayList<>();
+
+	public final Timer tick = timer("tick", "Time spent in the server tick handler");
+	public final Timer save = timer("save", "Time the server thread spends handing playtimes to the persistence worker");
+	public final Timer storageWrite = timer("storage_write", "Time spent writing playtime increments to storage");
+	public final Timer compaction = timer("compaction", "Time spent on storage housekeeping such as journal compaction");
+	public final Timer luckPermsLookup = timer("luckperms_lookup", "Time spent resolving a player's groups through LuckPerms");
+	public final Timer promotionWrite = timer("promotion_write", "Time from submitting a promotion to LuckPerms until it completes");
+	public final Counter membershipHits = counter("membership_cache_hits", "Group lookups answered from the cache");
+	public final Counter membershipMisses = counter("membership_cache_misses", "Group lookups that had to ask LuckPerms");
+	public final Counter rankChecks = counter("rank_checks", "Rank checks run because a player's deadline was due");
+	public final Counter promotionsRequested = counter("promotions_requested", "Promotions decided by rank checks and queued for LuckPerms");
+	public final Counter promotionsSucceeded = counter("promotions_succeeded", "Promotions written to LuckPerms");
+	public final Counter promotionsFailed = counter("promotions_failed", "Promotions LuckPerms failed to write");
+	public final Counter saveErrors = counter("save_errors", "Playtime writes that failed and were retried later");
+	public final Counter recordsWritten = counter("records_written", "Per-player playtime increments written to storage");
+	public final Counter bytesWritten = counter("bytes_written", "Bytes of playtime records written to storage");
+	public final Counter httpRequests = counter("http_requests", "Requests to the playtime query endpoint");
+	public final Counter httpNotModified = counter("http_not_modified", "Query endpoint requests answered with 304 because the data had not changed");
+
+	public Counter counter(String name, String help) {
+		Counter counter = new Counter(name, help);
+		counters.add(counter);
+		return counter;
+	}
+
+	public Timer timer(String name, String help) {
+		Timer timer = new Timer(name, help);
+		timers.add(timer);
+		return timer;
+	}
+
+	public void gauge(String name, String help, LongSupplier value) {
+		gauges.add(new Gauge(name, help, value));
+	}
+
+	// One line per metric for /timedrankup stats
+	public List<String> summary() {
+		List<String> lines = new ArrayList<>();
+		for (Timer timer : timers) {
+			long count = timer.count();
+			if (count == 0) {
+				lines.add(timer.name + ": no samples");
+			} else {
+				lines.add(String.format("%s: %d samples, mean %s, p50 %s, p99 %s, max %s", timer.name, count,
+						formatNanos(timer.sumNanos() / count), formatNanos(timer.percentileNanos(0.5)),
+						formatNanos(timer.percentileNanos(0.99)), formatNanos(timer.maxNanos())));
+			}
+		}
+		for (Counter counter : counters) {
+			lines.add(counter.name + ": " + counter.get());
+		}
+		for (Gauge gauge : gauges) {
+			lines.add(gauge.name + ": " + gauge.value.getAsLong());
+		}
+		return lines;
+	}
+
+	// Prometheus text exposition format, version 0.0.4
+	public void writePrometheus(Appendable out) throws IOException {
+		for (Counter counter : counters) {
+			header(out, counter.name + "_total", counter.help, "counter");
+			out.append(PREFIX).append(counter.name).append("_total ").append(Long.toString(counter.get())).append('\n');
+		}
+		for (Gauge gauge : gauges) {
+			header(out, gauge.name, gauge.help, "gauge");
+			out.append(PREFIX).append(gauge.name).append(' ').append(Long.toString(gauge.value.getAsLong())).append('\n');
+		}
+		for (Timer timer : timers) {
+			String name = timer.name + "_seconds";
+			header(out, name, timer.help, "histogram");
+			long cumulative = 0;
+			for (int bucket = 0; bucket <= Timer.LAST_EXPORTED_BUCKET; bucket++) {
+				cumulative += timer.buckets.get(bucket);
+				if (bucket >= Timer.FIRST_EXPORTED_BUCKET) {
+					out.append(PREFIX).append(name).append("_bucket{le=\"").append(seconds(1L << bucket)).append("\"} ")
+							.append(Long.toString(cumulative)).append('\n');
+				}
+			}
+			long count = timer.count();
+			out.append(PREFIX).append(name).append("_bucket{le=\"+Inf\"} ").append(Long.toString(count)).append('\n');
+			out.append(PREFIX).append(name).append("_sum ").append(seconds(timer.sumNanos())).append('\n');
+			out.append(PREFIX).append(name).append("_count ").append(Long.toString(count)).append('\n');
+		}
+	}
+
+	private static void header(Appendable out, String name, String help, String type) throws IOException {
+		out.append("# HELP ").append(PREFIX).append(name).append(' ').append(help).append('\n');
+		out.append("# TYPE ").append(PREFIX).append(name).append(' ').append(type).append('\n');
+	}
+
+	private static String seconds(long nanos) {
+		return Double.toString(nanos / 1e9);
+	}
+
+	private static String formatNanos(long nanos) {
+		if (nanos < 1_000L) {
+			return nanos + "ns";
+		} else if (nanos < 1_000_000L) {
+			return String.format("%.1fus", nanos / 1e3);
+		} else if (nanos < 1_000_000_000L) {
+			return String.format("%.2fms", nanos / 1e6);
+		}
+		return String.format("%.2fs", nanos / 1e9);
+	}
+
+	public static final class Counter {
+		private final String name;
+		private final String help;
+		private final LongAdder value = new LongAdder();
+
+		private Counter(String name, String help) {
+			this.name = name;
+			this.help = help;
+		}
+
+		public void increment() {
+			value.increment();
+		}
+
+		public void add(long delta) {
+			value.add(delta);
+		}
+
+		public long get() {
+			return value.sum();
+		}
+	}
+
+	// Latency histogram with power-of-two nanosecond buckets: bucket i counts samples below 2^i ns
+	public static final class Timer {
+		private static final int BUCKETS = 64;
+		private static final int FIRST_EXPORTED_BUCKET = 10; // ~1us
+		private static final int LAST_EXPORTED_BUCKET = 36; // ~69s
+		private final String name;
+		private final String help;
+		private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+		private final LongAdder count = new LongAdder();
+		private final LongAdder sum = new LongAdder();
+		private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+		private Timer(String name, String help) {
+			this.name = name;
+			this.help = help;
+		}
+
+		public void record(long nanos) {
+			if (nanos < 0) {
+				nanos = 0;
+			}
+			buckets.incrementAndGet(Math.min(64 - Long.numberOfLeadingZeros(nanos), BUCKETS - 1));
+			count.increment();
+			sum.add(nanos);
+			max.accumulate(nanos);
+		}
+
+		// Convenience for the usual "long start = System.nanoTime(); ...; timer.recordSince(start)"
+		public void recordSince(long startNanos) {
+			record(System.nanoTime() - startNanos);
+		}
+
+		public long count() {
+			return count.sum();
+		}
+
+		public long sumNanos() {
+			return sum.sum();
+		}
+
+		public long maxNanos() {
+			return max.get();
+		}
+
+		// Upper bound of the bucket holding the given quantile, so accurate to within a factor of two
+		public long percentileNanos(double quantile) {
+			long total = 0;
+			for (int i = 0; i < BUCKETS; i++) {
+				total += buckets.get(i);
+			}
+			long rank = (long) Math.ceil(total * quantile);
+			long seen = 0;
+			for (int i = 0; i < BUCKETS; i++) {
+				seen += buckets.get(i);
+				if (seen >= rank && seen > 0) {
+					return Math.min(i == 0 ? 0 : i >= 63 ? Long.MAX_VALUE : 1L << i, maxNanos());
+				}
+			}
+			return maxNanos();
+		}
+	}
+
+	private static final class Gauge {
+		private final String name;
+		private final String help;
+		private final LongSupplier value;
+
+		private Gauge(String name, String help, LongSupplier value) {
+			this.name = name;
+			this.help = help;
+			this.value = value;
+		}
+	}
+}
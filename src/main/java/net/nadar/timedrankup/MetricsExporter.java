@@ -0,0 +1,52 @@
+package net.nadar.timedrankup;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// Periodically writes the metrics as a Prometheus text file, e.g. for node_exporter's textfile collector. The file
+// is written next to its final name and moved into place so a scrape never sees half of it.
+public class MetricsExporter {
+
+	private static final Logger LOGGER = LogManager.getLogger();
+	private final Metrics metrics;
+	private final Path file;
+	private final ScheduledExecutorService executor;
+
+	public MetricsExporter(Metrics metrics, Path file, long intervalSeconds) {
+		this.metrics = metrics;
+		this.file = file;
+		this.executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "TimedRankup-Metrics");
+			thread.setDaemon(true);
+			return thread;
+		});
+		executor.scheduleWithFixedDelay(this::export, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+	}
+
+	public void shutdown() {
+		executor.shutdownNow();
+	}
+
+	private void export() {
+		Path temporaryFile = file.resolveSibling(file.getFileName() + ".tmp");
+		try {
+			Files.createDirectories(file.getParent());
+			try (Writer writer = Files.newBufferedWriter(temporaryFile, StandardCharsets.UTF_8)) {
+				metrics.writePrometheus(writer);
+			}
+			Files.move(temporaryFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			LOGGER.error("Error writing metrics file: {}", e.getMessage());
+		}
+	}
+}
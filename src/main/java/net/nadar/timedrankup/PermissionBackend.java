@@ -0,0 +1,38 @@
+package net.nadar.timedrankup;
+
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+
+// The slice of a permissions plugin TimedRankup needs: reading a player's groups, setting their parent group and
+// hearing about changes. LuckPermsBackend is the real one; the load simulator supplies an in-memory one.
+public interface PermissionBackend {
+
+	// Names of the groups the player inherits, or null if the backend has not loaded the player
+	List<String> inheritedGroups(UUID playerId);
+
+	// Like inheritedGroups, but an offline player is first read from the backend's storage. Completes with null if
+	// the backend knows nothing about the player.
+	CompletableFuture<List<String>> loadInheritedGroups(UUID playerId);
+
+	// Replaces the player's parent groups with this one, like "lp user <name> parent set <group>". Completes
+	// exceptionally without touching the player if the group does not exist.
+	CompletableFuture<Void> setParentGroup(UUID playerId, String group);
+
+	// The listener is called from whichever thread the backend reports changes on
+	void subscribe(ChangeListener listener);
+
+	// Drops every subscription
+	void close();
+
+	interface ChangeListener {
+		// The player's groups may have changed
+		void onUserChanged(UUID playerId);
+
+		// The backend let go of the player; nothing about them changed
+		void onUserUnloaded(UUID playerId);
+
+		// A group changed, which can affect every member's inheritance
+		void onAllChanged();
+	}
+}
@@ -0,0 +1,289 @@
+package net.nadar.timedrankup;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+// Case-insensitive name -> UUID index of every player who joined, so /playtime works for offline players without
+// asking Mojang. Names live in a trie, which also serves tab completion by prefix, and are persisted as an
+// append-only file of "uuid name" lines where the last line for a UUID wins. The file is read, compacted and
+// appended to on a background thread. Names the index does not know are resolved off-thread by the caller's
+// resolver, with the results kept in a small LRU so repeated lookups of the same name do not go out again.
+public class PlayerNameIndex {
+
+	private static final Logger LOGGER = LogManager.getLogger();
+	private static final int RECENT_LOOKUPS = 256;
+	private static final UUID NOT_FOUND = new UUID(0, 0); // Cached for names the resolver did not know either
+	private final Path file;
+	private final ExecutorService executor;
+	private final TrieNode root = new TrieNode(); // Guarded by this
+	private final Map<UUID, String> namesById = new HashMap<>(); // Guarded by this
+	private final Map<String, UUID> recentLookups = new LinkedHashMap<>(16, 0.75f, true) { // Guarded by this
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, UUID> eldest) {
+			return size() > RECENT_LOOKUPS;
+		}
+	};
+	private Writer appender; // Only touched on the executor thread
+
+	public PlayerNameIndex(Path file) {
+		this.file = file;
+		this.executor = Executors.newSingleThreadExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "TimedRankup-Names");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	// Reads the file in the background; players recorded meanwhile keep the name they were recorded with
+	public void load() {
+		executor.execute(() -> {
+			if (!Files.exists(file)) {
+				return;
+			}
+			Map<UUID, String> loaded = new LinkedHashMap<>();
+			int lines = 0;
+			try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+				String line;
+				while ((line = reader.readLine()) != null) {
+					lines++;
+					int separator = line.indexOf(' ');
+					try {
+						if (separator > 0 && separator < line.length() - 1) {
+							loaded.put(UUID.fromString(line.substring(0, separator)), line.substring(separator + 1));
+						}
+					} catch (IllegalArgumentException e) {
+						LOGGER.warn("Skipping malformed player name entry: {}", line);
+					}
+				}
+			} catch (IOException e) {
+				LOGGER.error("Error loading player names: {}", e.getMessage());
+				return;
+			}
+			synchronized (this) {
+				loaded.forEach((playerId, name) -> {
+					if (!namesById.containsKey(playerId)) {
+						put(playerId, name);
+					}
+				});
+			}
+			// Renames leave superseded lines behind; rewrite the file once they make up most of it
+			if (lines > 2 * loaded.size() + 1000) {
+				compact();
+			}
+		});
+	}
+
+	// Called when a player joins; only a new player or a changed name touches the file
+	public void record(UUID playerId, String name) {
+		synchronized (this) {
+			if (name.equals(namesById.get(playerId))) {
+				return;
+			}
+			put(playerId, name);
+			recentLookups.remove(name.toLowerCase(Locale.ROOT));
+		}
+		executor.execute(() -> append(playerId, name));
+	}
+
+	// UUID of the player last seen under this name, in any case, or null if the index does not know it
+	public synchronized UUID get(String name) {
+		String key = name.toLowerCase(Locale.ROOT);
+		TrieNode node = find(key);
+		if (node != null && node.playerId != null) {
+			return node.playerId;
+		}
+		UUID recent = recentLookups.get(key);
+		return recent != null && recent != NOT_FOUND ? recent : null;
+	}
+
+	// Last name the player was seen under, or null
+	public synchronized String name(UUID playerId) {
+		return namesById.get(playerId);
+	}
+
+	// Up to limit known names starting with the prefix, in any case, sorted case-insensitively
+	public synchronized List<String> complete(String prefix, int limit) {
+		List<String> names = new ArrayList<>();
+		TrieNode node = find(prefix.toLowerCase(Locale.ROOT));
+		if (node != null) {
+			collect(node, names, limit);
+		}
+		return names;
+	}
+
+	// Resolves a name the index does not know on the background thread and hands the UUID, or null, to the
+	// callback on the callback executor. The resolver may block, e.g. on a request to Mojang.
+	public void lookup(String name, Function<String, UUID> resolver, Executor callbackExecutor, Consumer<UUID> callback) {
+		String key = name.toLowerCase(Locale.ROOT);
+		UUID known;
+		boolean cachedMiss;
+		synchronized (this) {
+			known = get(name);
+			cachedMiss = known == null && recentLookups.get(key) == NOT_FOUND;
+		}
+		if (known != null || cachedMiss) {
+			callbackExecutor.execute(() -> callback.accept(known));
+			return;
+		}
+		executor.execute(() -> {
+			UUID resolved = null;
+			try {
+				resolved = resolver.apply(name);
+			} catch (RuntimeException e) {
+				LOGGER.error("Error looking up player {}: {}", name, e.getMessage());
+			}
+			synchronized (this) {
+				recentLookups.put(key, resolved != null ? resolved : NOT_FOUND);
+			}
+			UUID result = resolved;
+			callbackExecutor.execute(() -> callback.accept(result));
+		});
+	}
+
+	// Closes the file once everything queued is written and waits for it, e.g. before the server stops. The thread
+	// stays around for the next server an integrated client starts, which reopens the file on its first append.
+	public void flush() {
+		try {
+			executor.submit(() -> {
+				if (appender != null) {
+					try {
+						appender.close();
+					} catch (IOException e) {
+						LOGGER.error("Error closing player names file: {}", e.getMessage());
+					}
+					appender = null;
+				}
+			}).get(10, TimeUnit.SECONDS);
+		} catch (ExecutionException | TimeoutException e) {
+			LOGGER.error("Timed out waiting for player names to be written.");
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void put(UUID playerId, String name) {
+		String previous = namesById.put(playerId, name);
+		if (previous != null) {
+			TrieNode node = find(previous.toLowerCase(Locale.ROOT));
+			// Someone else may have taken the old name since
+			if (node != null && playerId.equals(node.playerId)) {
+				node.playerId = null;
+				node.name = null;
+			}
+		}
+		TrieNode node = root;
+		String key = name.toLowerCase(Locale.ROOT);
+		for (int i = 0; i < key.length(); i++) {
+			node = node.childOrCreate(key.charAt(i));
+		}
+		node.playerId = playerId;
+		node.name = name;
+	}
+
+	private TrieNode find(String key) {
+		TrieNode node = root;
+		for (int i = 0; i < key.length() && node != null; i++) {
+			node = node.child(key.charAt(i));
+		}
+		return node;
+	}
+
+	private static void collect(TrieNode node, List<String> names, int limit) {
+		if (node.name != null && names.size() < limit) {
+			names.add(node.name);
+		}
+		for (int i = 0; i < node.size && names.size() < limit; i++) {
+			collect(node.children[i], names, limit);
+		}
+	}
+
+	private void append(UUID playerId, String name) {
+		try {
+			if (appender == null) {
+				Files.createDirectories(file.getParent());
+				appender = Files.newBufferedWriter(file, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+			}
+			appender.write(playerId + " " + name + "\n");
+			appender.flush();
+		} catch (IOException e) {
+			LOGGER.error("Error writing player names: {}", e.getMessage());
+		}
+	}
+
+	// Runs on the executor before anything is appended
+	private void compact() {
+		Map<UUID, String> names;
+		synchronized (this) {
+			names = new HashMap<>(namesById);
+		}
+		Path temporaryFile = file.resolveSibling(file.getFileName() + ".tmp");
+		try {
+			try (Writer writer = Files.newBufferedWriter(temporaryFile, StandardCharsets.UTF_8)) {
+				for (Map.Entry<UUID, String> entry : names.entrySet()) {
+					writer.write(entry.getKey() + " " + entry.getValue() + "\n");
+				}
+			}
+			Files.move(temporaryFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			LOGGER.error("Error compacting player names file: {}", e.getMessage());
+		}
+	}
+
+	// One character of a lower-cased name; children are kept sorted by character and found by binary search
+	private static final class TrieNode {
+		private char[] keys = new char[0];
+		private TrieNode[] children = new TrieNode[0];
+		private int size;
+		private UUID playerId; // Set when a name ends here
+		private String name; // The name as the player spells it
+
+		private TrieNode child(char key) {
+			int index = Arrays.binarySearch(keys, 0, size, key);
+			return index >= 0 ? children[index] : null;
+		}
+
+		private TrieNode childOrCreate(char key) {
+			int index = Arrays.binarySearch(keys, 0, size, key);
+			if (index >= 0) {
+				return children[index];
+			}
+			int insertion = -index - 1;
+			if (size == keys.length) {
+				keys = Arrays.copyOf(keys, Math.max(size * 2, 2));
+				children = Arrays.copyOf(children, keys.length);
+			}
+			System.arraycopy(keys, insertion, keys, insertion + 1, size - insertion);
+			System.arraycopy(children, insertion, children, insertion + 1, size - insertion);
+			TrieNode child = new TrieNode();
+			keys[insertion] = key;
+			children[insertion] = child;
+			size++;
+			return child;
+		}
+	}
+}
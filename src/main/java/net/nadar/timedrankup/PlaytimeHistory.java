@@ -0,0 +1,345 @@
+package net.nadar.timedrankup;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.UUID;
+import java.util.function.LongSupplier;
+
+// Recent playtime per player in daily buckets, for ranks that ask for time played within the last few days. Each
+// player has a ring of marks holding their running total at the end of each of their last DAYS days, so the time
+// played in any window is the running total minus a single mark: O(1) however many days the window spans. Records
+// are dense int arrays found through an open-addressed index, about 160 bytes a player, and players who have not
+// played within the longest window are dropped. On disk each player's days are delta-encoded from the marks as
+// varints. Days are UTC days of the wall clock. Only playtime from sessions is recorded, not imported totals.
+// Thread safe: sessions add to it from the server and persistence threads, rank checks and commands read it.
+public class PlaytimeHistory {
+
+	private static final Logger LOGGER = LogManager.getLogger();
+	public static final int DAYS = 32;
+	public static final int MAX_WINDOW_DAYS = DAYS - 1; // The mark before the window's first day must still be in the ring
+	private static final int LAST_DAY = 0; // Newest day of the ring
+	private static final int TOTAL = 1; // Running total since the record was created
+	private static final int MARKS = 2; // Running total at the end of each day, indexed by day modulo DAYS
+	private static final int RECORD_INTS = MARKS + DAYS;
+	private static final long MILLIS_PER_DAY = 86_400_000L;
+	private static final long WRITE_INTERVAL_MILLIS = 5 * 60 * 1000L;
+	private static final int MAGIC = 0x54525048; // "TRPH"
+	private static final int VERSION = 1;
+
+	private final Path file;
+	private final LongSupplier epochMillis;
+	private int[] index = new int[64]; // Record number + 1 for each occupied slot, 0 for an empty one
+	private long[] ids = new long[32 * 2]; // Most and least significant bits of each record's player
+	private int[] records = new int[32 * RECORD_INTS];
+	private int size;
+	private boolean dirty;
+	private long[] dirtyRecords = new long[1]; // Bit per record changed since the last write
+	private boolean relocated = true; // Records moved since the last write, so the writer's copy is stale as a whole
+	private long lastWrite; // Only touched by the thread that writes the file
+	private long[] writtenIds = new long[0]; // The writer's copy of ids and records; only touched by the thread that writes the file
+	private int[] writtenRecords = new int[0];
+
+	public PlaytimeHistory(Path file, LongSupplier epochMillis) {
+		this.file = file;
+		this.epochMillis = epochMillis;
+		this.lastWrite = epochMillis.getAsLong();
+	}
+
+	public int today() {
+		return (int) Math.floorDiv(epochMillis.getAsLong(), MILLIS_PER_DAY);
+	}
+
+	// Credits the seconds to today
+	public void add(UUID playerId, long seconds) {
+		if (seconds <= 0) {
+			return;
+		}
+		int today = today();
+		synchronized (this) {
+			int record = findOrInsert(playerId.getMostSignificantBits(), playerId.getLeastSignificantBits(), today);
+			credit(record * RECORD_INTS, today, seconds);
+			dirtyRecords[record >>> 6] |= 1L << record;
+			dirty = true;
+		}
+	}
+
+	// Seconds played today and on the days before it, windowDays days in all, capped to MAX_WINDOW_DAYS
+	public long windowSum(UUID playerId, int windowDays) {
+		int today = today();
+		synchronized (this) {
+			int record = find(playerId.getMostSignificantBits(), playerId.getLeastSignificantBits());
+			if (record < 0) {
+				return 0;
+			}
+			int base = record * RECORD_INTS;
+			int lastDay = records[base + LAST_DAY];
+			int before = today - Math.max(Math.min(windowDays, MAX_WINDOW_DAYS), 1); // Last day outside the window
+			if (before >= lastDay) {
+				return 0; // Nothing played since
+			}
+			// Only reached further back than the ring if the wall clock went backwards
+			before = Math.max(before, lastDay - DAYS + 1);
+			return records[base + TOTAL] - records[base + MARKS + Math.floorMod(before, DAYS)];
+		}
+	}
+
+	public synchronized int size() {
+		return size;
+	}
+
+	// Reads the file written by an earlier run, dropping players who have not played within the longest window since
+	public void load() {
+		if (!Files.exists(file)) {
+			return;
+		}
+		int today = today();
+		int loaded = 0;
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+			if (in.readInt() != MAGIC) {
+				throw new IOException("Not a playtime history file");
+			}
+			int version = in.readInt();
+			if (version != VERSION) {
+				throw new IOException("Unsupported playtime history version " + version);
+			}
+			int count = in.readInt();
+			synchronized (this) {
+				for (int i = 0; i < count; i++) {
+					long mostSigBits = in.readLong();
+					long leastSigBits = in.readLong();
+					int lastDay = in.readInt();
+					int days = readVarInt(in);
+					if (days > MAX_WINDOW_DAYS) {
+						throw new IOException("Corrupt playtime history entry");
+					}
+					int firstDay = lastDay - days + 1;
+					boolean recent = lastDay > today - MAX_WINDOW_DAYS;
+					int record = recent ? findOrInsert(mostSigBits, leastSigBits, firstDay - 1) : -1;
+					for (int day = firstDay; day <= lastDay; day++) {
+						int seconds = readVarInt(in);
+						if (record >= 0) {
+							credit(record * RECORD_INTS, day, seconds);
+						}
+					}
+					loaded += recent ? 1 : 0;
+				}
+			}
+		} catch (EOFException e) {
+			LOGGER.error("Playtime history file is truncated, keeping the {} players read so far", loaded);
+		} catch (IOException e) {
+			LOGGER.error("Error loading playtime history: {}", e.getMessage());
+		}
+	}
+
+	// Called by the persistence worker after each save; rewrites the file every few minutes if anything changed
+	public void writeIfDue() {
+		long now = epochMillis.getAsLong();
+		if (now - lastWrite >= WRITE_INTERVAL_MILLIS) {
+			write();
+		}
+	}
+
+	// Brings the writer's copy up to date under the lock and encodes it outside it. Only the records that changed
+	// since the last write are copied, so joins and rank checks never wait for a copy of every player; all of them
+	// are only copied after the arrays were compacted or grew, which moved the records anyway.
+	public void write() {
+		int count;
+		synchronized (this) {
+			if (!dirty) {
+				return;
+			}
+			count = size;
+			if (relocated) {
+				writtenIds = ids.clone();
+				writtenRecords = records.clone();
+				relocated = false;
+			} else {
+				for (int word = 0; word < dirtyRecords.length; word++) {
+					for (long bits = dirtyRecords[word]; bits != 0; bits &= bits - 1) {
+						int record = word * 64 + Long.numberOfTrailingZeros(bits);
+						System.arraycopy(ids, record * 2, writtenIds, record * 2, 2);
+						System.arraycopy(records, record * RECORD_INTS, writtenRecords, record * RECORD_INTS, RECORD_INTS);
+					}
+				}
+			}
+			Arrays.fill(dirtyRecords, 0);
+			dirty = false;
+		}
+		long[] idsCopy = writtenIds;
+		int[] recordsCopy = writtenRecords;
+		lastWrite = epochMillis.getAsLong();
+		int today = today();
+		// Days from the first one with any playtime, per record; 0 for players who are left out
+		int[] days = new int[count];
+		int written = 0;
+		for (int record = 0; record < count; record++) {
+			int base = record * RECORD_INTS;
+			int lastDay = recordsCopy[base + LAST_DAY];
+			if (lastDay <= today - MAX_WINDOW_DAYS) {
+				continue;
+			}
+			for (int day = lastDay - MAX_WINDOW_DAYS + 1; day <= lastDay; day++) {
+				if (secondsOn(recordsCopy, base, day) > 0) {
+					days[record] = lastDay - day + 1;
+					written++;
+					break;
+				}
+			}
+		}
+		Path temporaryFile = file.resolveSibling(file.getFileName() + ".tmp");
+		try {
+			Files.createDirectories(file.getParent());
+			try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporaryFile)))) {
+				out.writeInt(MAGIC);
+				out.writeInt(VERSION);
+				out.writeInt(written);
+				for (int record = 0; record < count; record++) {
+					if (days[record] == 0) {
+						continue;
+					}
+					int base = record * RECORD_INTS;
+					int lastDay = recordsCopy[base + LAST_DAY];
+					out.writeLong(idsCopy[record * 2]);
+					out.writeLong(idsCopy[record * 2 + 1]);
+					out.writeInt(lastDay);
+					writeVarInt(out, days[record]);
+					for (int day = lastDay - days[record] + 1; day <= lastDay; day++) {
+						writeVarInt(out, secondsOn(recordsCopy, base, day));
+					}
+				}
+			}
+			Files.move(temporaryFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			synchronized (this) {
+				dirty = true;
+			}
+			LOGGER.error("Error writing playtime history: {}", e.getMessage());
+		}
+	}
+
+	// Seconds played on a day of the ring other than its oldest, whose mark only serves as the base for the next one
+	private static int secondsOn(int[] records, int base, int day) {
+		return records[base + MARKS + Math.floorMod(day, DAYS)] - records[base + MARKS + Math.floorMod(day - 1, DAYS)];
+	}
+
+	// Moves the ring forward to the day, if it is newer, and adds the seconds to it
+	private void credit(int base, int day, long seconds) {
+		int lastDay = records[base + LAST_DAY];
+		int total = records[base + TOTAL];
+		if (day > lastDay) {
+			// Days without playtime end on the same total as the day before
+			for (int skipped = Math.max(lastDay + 1, day - DAYS + 1); skipped <= day; skipped++) {
+				records[base + MARKS + Math.floorMod(skipped, DAYS)] = total;
+			}
+			records[base + LAST_DAY] = day;
+			lastDay = day;
+		}
+		// A wall clock that went backwards credits the newest day instead
+		total = (int) Math.min(total + seconds, Integer.MAX_VALUE);
+		records[base + TOTAL] = total;
+		records[base + MARKS + Math.floorMod(lastDay, DAYS)] = total;
+	}
+
+	private int find(long mostSigBits, long leastSigBits) {
+		int mask = index.length - 1;
+		int slot = (int) PlaytimeStore.mix(mostSigBits ^ leastSigBits) & mask;
+		while (index[slot] != 0) {
+			int record = index[slot] - 1;
+			if (ids[record * 2] == mostSigBits && ids[record * 2 + 1] == leastSigBits) {
+				return record;
+			}
+			slot = (slot + 1) & mask;
+		}
+		return -1;
+	}
+
+	// A new record starts with nothing played up to and including the given day
+	private int findOrInsert(long mostSigBits, long leastSigBits, int day) {
+		int record = find(mostSigBits, leastSigBits);
+		if (record >= 0) {
+			return record;
+		}
+		if (size == ids.length / 2) {
+			grow(today());
+		}
+		record = size++;
+		ids[record * 2] = mostSigBits;
+		ids[record * 2 + 1] = leastSigBits;
+		int base = record * RECORD_INTS;
+		Arrays.fill(records, base, base + RECORD_INTS, 0);
+		records[base + LAST_DAY] = day;
+		insertIndex(record);
+		return record;
+	}
+
+	// Drops the players who have not played within the longest window before growing, so the arrays only grow
+	// with players who are still active
+	private void grow(int today) {
+		int kept = 0;
+		for (int record = 0; record < size; record++) {
+			if (records[record * RECORD_INTS + LAST_DAY] > today - MAX_WINDOW_DAYS) {
+				if (kept != record) {
+					System.arraycopy(ids, record * 2, ids, kept * 2, 2);
+					System.arraycopy(records, record * RECORD_INTS, records, kept * RECORD_INTS, RECORD_INTS);
+				}
+				kept++;
+			}
+		}
+		size = kept;
+		if (size > ids.length / 4) {
+			ids = Arrays.copyOf(ids, ids.length * 2);
+			records = Arrays.copyOf(records, records.length * 2);
+		}
+		dirtyRecords = new long[(ids.length / 2 + 63) / 64];
+		relocated = true;
+		// Keeps the index at most half full
+		int capacity = index.length;
+		while (capacity < ids.length) {
+			capacity *= 2;
+		}
+		index = new int[capacity];
+		for (int record = 0; record < size; record++) {
+			insertIndex(record);
+		}
+	}
+
+	private void insertIndex(int record) {
+		int mask = index.length - 1;
+		int slot = (int) PlaytimeStore.mix(ids[record * 2] ^ ids[record * 2 + 1]) & mask;
+		while (index[slot] != 0) {
+			slot = (slot + 1) & mask;
+		}
+		index[slot] = record + 1;
+	}
+
+	private static void writeVarInt(DataOutputStream out, int value) throws IOException {
+		while ((value & ~0x7F) != 0) {
+			out.writeByte((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		out.writeByte(value);
+	}
+
+	private static int readVarInt(DataInputStream in) throws IOException {
+		int value = 0;
+		for (int shift = 0; shift < 35; shift += 7) {
+			int b = in.readUnsignedByte();
+			value |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new IOException("Corrupt playtime history entry");
+	}
+}
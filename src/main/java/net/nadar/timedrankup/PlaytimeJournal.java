@@ -0,0 +1,254 @@
+package net.nadar.timedrankup;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+// Binary playtime store plus an append-only journal of the players whose playtime changed since the store
+// was last forced to disk. Journal records hold the player's total rather than an increment, so replaying
+// them is idempotent. The store itself is not thread-safe and is only touched by the persistence worker
+// once load() has returned. This is the local, single-server PlaytimeStorage.
+public class PlaytimeJournal implements PlaytimeStorage {
+
+	private static final Logger LOGGER = LogManager.getLogger();
+	private static final int COMPACTION_INTERVAL_APPENDS = 60; // Roughly every 15 minutes at the default save interval
+	private static final long COMPACTION_JOURNAL_BYTES = 4L * 1024 * 1024;
+	private final Path storeFile;
+	private final Path journalFile;
+	private final Path legacyFile;
+	private final Metrics metrics;
+	private PlaytimeStore store;
+	private int appendsSinceCompaction = 0;
+
+	public PlaytimeJournal(Path storeFile, Path legacyFile, Metrics metrics) {
+		this.storeFile = storeFile;
+		this.journalFile = storeFile.resolveSibling(storeFile.getFileName() + ".journal");
+		this.legacyFile = legacyFile;
+		this.metrics = metrics;
+	}
+
+	// Opens the store, replays the journal tail on top of it and hands every known playtime to the sink
+	public long load(PlaytimeStore.PlaytimeConsumer sink) {
+		try {
+			// Opening creates the store, so only the legacy file tells whether an import is still to be done
+			store = PlaytimeStore.open(storeFile);
+			if (Files.exists(legacyFile)) {
+				migrateLegacyFile();
+			}
+		} catch (IOException e) {
+			LOGGER.error("Error opening playtime store {}: {}", storeFile, e.getMessage());
+			// Nothing may be written on top of a half-done import; the journal is kept for the next start
+			if (store != null) {
+				try {
+					store.close();
+				} catch (IOException closeError) {
+					LOGGER.error("Error closing playtime store: {}", closeError.getMessage());
+				}
+				store = null;
+			}
+			return 0;
+		}
+
+		int journalEntries = replayJournal();
+		store.forEach(sink);
+		if (store.size() > 0) {
+			LOGGER.info("Loaded playtime for {} players ({} journal entries replayed)", store.size(), journalEntries);
+		}
+		if (journalEntries > 0) {
+			// Start from a clean journal so new appends never follow a torn record
+			compact();
+		}
+		return store.size();
+	}
+
+	@Override
+	public void loadAll(PlaytimeStore.PlaytimeConsumer sink) {
+		load(sink);
+	}
+
+	@Override
+	public boolean isShared() {
+		return false;
+	}
+
+	@Override
+	public long load(UUID playerId) throws IOException {
+		return openStore().get(playerId, 0L);
+	}
+
+	@Override
+	public void addPlaytime(Map<UUID, Long> seconds) throws IOException {
+		if (seconds.isEmpty()) {
+			return;
+		}
+		PlaytimeStore current = openStore();
+		Map<UUID, Long> totals = new HashMap<>(seconds.size() * 2);
+		for (Map.Entry<UUID, Long> entry : seconds.entrySet()) {
+			totals.put(entry.getKey(), current.get(entry.getKey(), 0L) + entry.getValue());
+		}
+		append(totals);
+	}
+
+	@Override
+	public boolean maintain() {
+		if (appendsSinceCompaction >= COMPACTION_INTERVAL_APPENDS || journalSize() >= COMPACTION_JOURNAL_BYTES) {
+			compact();
+			return true;
+		}
+		return false;
+	}
+
+	// Records absolute totals
+	public void append(Map<UUID, Long> changedPlaytimes) throws IOException {
+		if (changedPlaytimes.isEmpty()) {
+			return;
+		}
+		PlaytimeStore current = openStore();
+		ByteBuffer records = ByteBuffer.allocate(changedPlaytimes.size() * PlaytimeStore.RECORD_SIZE);
+		for (Map.Entry<UUID, Long> entry : changedPlaytimes.entrySet()) {
+			records.putLong(entry.getKey().getMostSignificantBits());
+			records.putLong(entry.getKey().getLeastSignificantBits());
+			records.putLong(entry.getValue());
+		}
+		records.flip();
+		int journalBytes = records.remaining();
+		try (FileChannel channel = FileChannel.open(journalFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+			while (records.hasRemaining()) {
+				channel.write(records);
+			}
+		}
+
+		// The journal now covers these records, so the store can be updated in place without forcing it
+		for (Map.Entry<UUID, Long> entry : changedPlaytimes.entrySet()) {
+			current.put(entry.getKey(), entry.getValue());
+		}
+		// Once into the journal and once into the store's record
+		metrics.bytesWritten.add(journalBytes + (long) changedPlaytimes.size() * PlaytimeStore.RECORD_SIZE);
+		appendsSinceCompaction++;
+	}
+
+	// Forces the in-place store updates to disk, after which the journal is no longer needed
+	public void compact() {
+		if (store == null) {
+			return;
+		}
+		try {
+			store.force();
+			Files.deleteIfExists(journalFile);
+			appendsSinceCompaction = 0;
+		} catch (IOException e) {
+			LOGGER.error("Error compacting playtime journal: {}", e.getMessage());
+		}
+	}
+
+	// Forces the store, so the next startup has no journal to replay
+	@Override
+	public void flush() {
+		compact();
+	}
+
+	@Override
+	public void close() {
+		if (store == null) {
+			return;
+		}
+		compact();
+		try {
+			store.close();
+		} catch (IOException e) {
+			LOGGER.error("Error closing playtime store: {}", e.getMessage());
+		}
+		store = null;
+	}
+
+	// Throws if the store could not be opened, so callers keep what they meant to write and try again later
+	private PlaytimeStore openStore() throws IOException {
+		if (store == null) {
+			throw new IOException("Playtime store " + storeFile.getFileName() + " is not open");
+		}
+		return store;
+	}
+
+	public long journalSize() {
+		try {
+			return Files.exists(journalFile) ? Files.size(journalFile) : 0;
+		} catch (IOException e) {
+			return 0;
+		}
+	}
+
+	private int replayJournal() {
+		if (!Files.exists(journalFile)) {
+			return 0;
+		}
+		int entries = 0;
+		try {
+			ByteBuffer records = ByteBuffer.wrap(Files.readAllBytes(journalFile));
+			// A partial trailing record was torn by a crash mid-append and is dropped
+			if (records.capacity() % PlaytimeStore.RECORD_SIZE != 0) {
+				LOGGER.warn("Skipping incomplete playtime entry at the end of {}", journalFile.getFileName());
+			}
+			while (records.remaining() >= PlaytimeStore.RECORD_SIZE) {
+				UUID playerId = new UUID(records.getLong(), records.getLong());
+				store.put(playerId, records.getLong());
+				entries++;
+			}
+		} catch (IOException e) {
+			LOGGER.error("Error replaying playtime journal {}: {}", journalFile, e.getMessage());
+		}
+		return entries;
+	}
+
+	// One-time import of the old "UUID,playtime" text file; the original is kept next to the store as a backup once
+	// the import is forced. An import cut short runs again on the next start. Totals only grow, so keeping the larger
+	// one makes that harmless even for players who played since.
+	private void migrateLegacyFile() throws IOException {
+		Path legacyJournal = legacyFile.resolveSibling(legacyFile.getFileName() + ".journal");
+		Map<UUID, Long> playtimes = new HashMap<>();
+		readLegacyInto(legacyFile, playtimes);
+		readLegacyInto(legacyJournal, playtimes);
+		for (Map.Entry<UUID, Long> entry : playtimes.entrySet()) {
+			store.put(entry.getKey(), Math.max(store.get(entry.getKey(), 0L), entry.getValue()));
+		}
+		store.force();
+		Files.move(legacyFile, legacyFile.resolveSibling(legacyFile.getFileName() + ".migrated"), StandardCopyOption.REPLACE_EXISTING);
+		Files.deleteIfExists(legacyJournal);
+		LOGGER.info("Migrated playtime for {} players from {} to {}", playtimes.size(), legacyFile, storeFile);
+	}
+
+	private static void readLegacyInto(Path file, Map<UUID, Long> playtimes) {
+		if (!Files.exists(file)) {
+			return;
+		}
+		try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				int separator = line.indexOf(',');
+				if (separator < 0) {
+					continue;
+				}
+				try {
+					UUID playerId = UUID.fromString(line.substring(0, separator));
+					long playtime = Long.parseLong(line.substring(separator + 1).trim());
+					playtimes.put(playerId, playtime);
+				} catch (IllegalArgumentException e) {
+					LOGGER.warn("Skipping malformed playtime entry in {}: {}", file.getFileName(), line);
+				}
+			}
+		} catch (IOException e) {
+			LOGGER.error("Error reading playtime data from {}: {}", file, e.getMessage());
+		}
+	}
+}
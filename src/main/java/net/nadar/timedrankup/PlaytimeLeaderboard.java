@@ -0,0 +1,238 @@
+package net.nadar.timedrankup;
+
+import java.util.Arrays;
+import java.util.UUID;
+
+// Players ordered by playtime, most first, with ties broken by UUID. A treap whose nodes carry their subtree size,
+// so a player's position and the player at any position are both found in O(log n) without sorting anything.
+// Nodes live in parallel arrays indexed by node number and freed nodes are reused, so updating a player allocates
+// nothing once the arrays have grown. Each player's current key is kept in a PlaytimeTable to find their node again.
+// Not thread safe; RankupEngine only touches it on the server thread.
+public class PlaytimeLeaderboard {
+
+	private static final int NIL = 0; // Node 0 is the empty subtree, with size 0
+	private static final int INITIAL_CAPACITY = 64;
+
+	private final PlaytimeTable ranked = new PlaytimeTable(); // Playtime each player is currently ranked with
+	private long[] mostSigBits = new long[INITIAL_CAPACITY];
+	private long[] leastSigBits = new long[INITIAL_CAPACITY];
+	private long[] playtimes = new long[INITIAL_CAPACITY];
+	private int[] priorities = new int[INITIAL_CAPACITY];
+	private int[] left = new int[INITIAL_CAPACITY];
+	private int[] right = new int[INITIAL_CAPACITY];
+	private int[] sizes = new int[INITIAL_CAPACITY];
+	private int root = NIL;
+	private int freeList = NIL; // Freed nodes, chained through left
+	private int nextNode = 1;
+
+	// Moves the player to the position their new playtime earns them, adding them if they were not ranked yet
+	public void update(UUID playerId, long playtime) {
+		long most = playerId.getMostSignificantBits();
+		long least = playerId.getLeastSignificantBits();
+		long current = ranked.get(most, least, Long.MIN_VALUE);
+		if (current == playtime) {
+			return;
+		}
+		if (current != Long.MIN_VALUE) {
+			root = delete(root, current, most, least);
+		}
+		ranked.put(playerId, playtime);
+		root = insert(root, allocate(most, least, playtime));
+	}
+
+	public void remove(UUID playerId) {
+		long playtime = ranked.remove(playerId, Long.MIN_VALUE);
+		if (playtime != Long.MIN_VALUE) {
+			root = delete(root, playtime, playerId.getMostSignificantBits(), playerId.getLeastSignificantBits());
+		}
+	}
+
+	// Playtime the player is ranked with, or -1 if they are not ranked
+	public long playtime(UUID playerId) {
+		long playtime = ranked.get(playerId, Long.MIN_VALUE);
+		return playtime != Long.MIN_VALUE ? playtime : -1;
+	}
+
+	public int size() {
+		return sizes[root];
+	}
+
+	// Every ranked player with the playtime they are ranked with, in no particular order. The copy may be read on
+	// any thread.
+	public PlaytimeTable.Snapshot snapshot() {
+		return ranked.snapshot();
+	}
+
+	// 1 for the player with the most playtime, or 0 if the player is not ranked
+	public int position(UUID playerId) {
+		long most = playerId.getMostSignificantBits();
+		long least = playerId.getLeastSignificantBits();
+		long playtime = ranked.get(most, least, Long.MIN_VALUE);
+		if (playtime == Long.MIN_VALUE) {
+			return 0;
+		}
+		int before = 0;
+		int node = root;
+		while (node != NIL) {
+			int order = compare(playtime, most, least, node);
+			if (order == 0) {
+				return before + sizes[left[node]] + 1;
+			}
+			if (order < 0) {
+				node = left[node];
+			} else {
+				before += sizes[left[node]] + 1;
+				node = right[node];
+			}
+		}
+		return 0;
+	}
+
+	// Hands the players at positions from + 1 to from + count, in order, to the consumer
+	public void forEachInRange(int from, int count, PlaytimeStore.PlaytimeConsumer consumer) {
+		int end = Math.min(from + count, size());
+		for (int index = Math.max(from, 0); index < end; index++) {
+			int node = select(index);
+			consumer.accept(new UUID(mostSigBits[node], leastSigBits[node]), playtimes[node]);
+		}
+	}
+
+	// Node at the zero-based index in leaderboard order
+	private int select(int index) {
+		int node = root;
+		while (true) {
+			int leftSize = sizes[left[node]];
+			if (index < leftSize) {
+				node = left[node];
+			} else if (index == leftSize) {
+				return node;
+			} else {
+				index -= leftSize + 1;
+				node = right[node];
+			}
+		}
+	}
+
+	// Negative if the key ranks before the node: more playtime first, then by UUID
+	private int compare(long playtime, long most, long least, int node) {
+		if (playtime != playtimes[node]) {
+			return playtime > playtimes[node] ? -1 : 1;
+		}
+		if (most != mostSigBits[node]) {
+			return most < mostSigBits[node] ? -1 : 1;
+		}
+		return Long.compare(least, leastSigBits[node]);
+	}
+
+	private int insert(int node, int inserted) {
+		if (node == NIL) {
+			return inserted;
+		}
+		sizes[node]++;
+		if (compare(playtimes[inserted], mostSigBits[inserted], leastSigBits[inserted], node) < 0) {
+			left[node] = insert(left[node], inserted);
+			if (priorities[left[node]] > priorities[node]) {
+				node = rotateRight(node);
+			}
+		} else {
+			right[node] = insert(right[node], inserted);
+			if (priorities[right[node]] > priorities[node]) {
+				node = rotateLeft(node);
+			}
+		}
+		return node;
+	}
+
+	// Only called for keys that are in the tree
+	private int delete(int node, long playtime, long most, long least) {
+		int order = compare(playtime, most, least, node);
+		if (order == 0) {
+			int merged = merge(left[node], right[node]);
+			release(node);
+			return merged;
+		}
+		sizes[node]--;
+		if (order < 0) {
+			left[node] = delete(left[node], playtime, most, least);
+		} else {
+			right[node] = delete(right[node], playtime, most, least);
+		}
+		return node;
+	}
+
+	// Joins two subtrees where every key of the first ranks before every key of the second
+	private int merge(int first, int second) {
+		if (first == NIL) {
+			return second;
+		}
+		if (second == NIL) {
+			return first;
+		}
+		if (priorities[first] > priorities[second]) {
+			right[first] = merge(right[first], second);
+			sizes[first] = sizes[left[first]] + sizes[right[first]] + 1;
+			return first;
+		}
+		left[second] = merge(first, left[second]);
+		sizes[second] = sizes[left[second]] + sizes[right[second]] + 1;
+		return second;
+	}
+
+	private int rotateRight(int node) {
+		int pivot = left[node];
+		left[node] = right[pivot];
+		right[pivot] = node;
+		sizes[pivot] = sizes[node];
+		sizes[node] = sizes[left[node]] + sizes[right[node]] + 1;
+		return pivot;
+	}
+
+	private int rotateLeft(int node) {
+		int pivot = right[node];
+		right[node] = left[pivot];
+		left[pivot] = node;
+		sizes[pivot] = sizes[node];
+		sizes[node] = sizes[left[node]] + sizes[right[node]] + 1;
+		return pivot;
+	}
+
+	private int allocate(long most, long least, long playtime) {
+		int node;
+		if (freeList != NIL) {
+			node = freeList;
+			freeList = left[node];
+		} else {
+			if (nextNode == sizes.length) {
+				grow();
+			}
+			node = nextNode++;
+		}
+		mostSigBits[node] = most;
+		leastSigBits[node] = least;
+		playtimes[node] = playtime;
+		// Random priorities keep the tree balanced in expectation; UUIDs hash well enough to serve as the source
+		priorities[node] = (int) PlaytimeStore.mix(most ^ least ^ playtime);
+		left[node] = NIL;
+		right[node] = NIL;
+		sizes[node] = 1;
+		return node;
+	}
+
+	private void release(int node) {
+		left[node] = freeList;
+		right[node] = NIL;
+		sizes[node] = 0;
+		freeList = node;
+	}
+
+	private void grow() {
+		int capacity = sizes.length * 2;
+		mostSigBits = Arrays.copyOf(mostSigBits, capacity);
+		leastSigBits = Arrays.copyOf(leastSigBits, capacity);
+		playtimes = Arrays.copyOf(playtimes, capacity);
+		priorities = Arrays.copyOf(priorities, capacity);
+		left = Arrays.copyOf(left, capacity);
+		right = Arrays.copyOf(right, capacity);
+		sizes = Arrays.copyOf(sizes, capacity);
+	}
+}
@@ -0,0 +1,138 @@
+package net.nadar.timedrankup;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.LongConsumer;
+import java.util.function.LongSupplier;
+
+// Writes playtime increments to the storage on a background thread so the server thread never touches disk or the database.
+// The recent playtime history is written from the same thread every few saves.
+public class PlaytimePersistenceWorker {
+
+	private static final Logger LOGGER = LogManager.getLogger();
+	private final PlaytimeStorage storage;
+	private final Metrics metrics;
+	private final PlaytimeHistory history;
+	private final ExecutorService executor;
+	private final Map<UUID, Long> unwritten = new HashMap<>(); // Increments a failed write left behind; only touched on the worker thread
+	private long submittedSaves = 0; // Only touched on the thread that calls save
+	private volatile long durableSaves = 0; // Every save up to this one has reached the storage
+
+	public PlaytimePersistenceWorker(PlaytimeStorage storage, Metrics metrics, PlaytimeHistory history) {
+		this.storage = storage;
+		this.metrics = metrics;
+		this.history = history;
+		this.executor = Executors.newSingleThreadExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "TimedRankup-Persistence");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	public boolean isShared() {
+		return storage.isShared();
+	}
+
+	public long save(Map<UUID, Long> seconds) {
+		return save(seconds, null, 0);
+	}
+
+	// Also writes the time the players who are still playing accrued up to nowNanos; it is collected here on the
+	// worker thread so the server thread never walks the online players to save them. Returns the save's sequence
+	// number, which durableSaves() reaches once it and every earlier save are in the storage.
+	public long save(Map<UUID, Long> seconds, PlaytimeSessions liveSessions, long nowNanos) {
+		long sequence = ++submittedSaves;
+		executor.execute(() -> {
+			Map<UUID, Long> increments = new HashMap<>(seconds);
+			if (liveSessions != null) {
+				liveSessions.checkpoint(nowNanos, (playerId, credited) -> increments.merge(playerId, credited, Long::sum));
+			}
+			unwritten.forEach((playerId, credited) -> increments.merge(playerId, credited, Long::sum));
+			unwritten.clear();
+			history.writeIfDue();
+			if (increments.isEmpty()) {
+				durableSaves = sequence;
+				return;
+			}
+			long start = System.nanoTime();
+			try {
+				storage.addPlaytime(increments);
+				metrics.recordsWritten.add(increments.size());
+				durableSaves = sequence;
+			} catch (IOException | RuntimeException e) {
+				// Kept for the next save, so a database outage delays the write instead of losing the time
+				unwritten.putAll(increments);
+				metrics.saveErrors.increment();
+				LOGGER.error("Error writing playtime data: {}", e.getMessage());
+				return;
+			} finally {
+				metrics.storageWrite.recordSince(start);
+			}
+			start = System.nanoTime();
+			if (storage.maintain()) {
+				metrics.compaction.recordSince(start);
+			}
+		});
+		return sequence;
+	}
+
+	// Sequence number of the last save submitted so far
+	public long submittedSaves() {
+		return submittedSaves;
+	}
+
+	public long durableSaves() {
+		return durableSaves;
+	}
+
+	// Reads the player's stored total after every write queued so far, minus the part of their current session
+	// that checkpoints already wrote, and hands it to the callback on the callback executor. The callback gets -1 if
+	// the storage could not be read.
+	public void load(UUID playerId, LongSupplier checkpointedSeconds, Executor callbackExecutor, LongConsumer callback) {
+		executor.execute(() -> {
+			long total;
+			try {
+				total = storage.load(playerId) - checkpointedSeconds.getAsLong();
+			} catch (IOException | RuntimeException e) {
+				LOGGER.error("Error reading playtime of {}: {}", playerId, e.getMessage());
+				total = -1;
+			}
+			long loaded = total;
+			callbackExecutor.execute(() -> callback.accept(loaded));
+		});
+	}
+
+	// Writes the final playtimes and waits for everything queued so far, e.g. before the server stops. The thread
+	// and the storage stay around for the next server an integrated client starts.
+	public void flush(Map<UUID, Long> finalSeconds) {
+		if (finalSeconds != null) {
+			save(finalSeconds);
+		}
+		try {
+			executor.submit(() -> {
+				if (!unwritten.isEmpty()) {
+					LOGGER.error("Could not write the playtime of {} players before the server stopped.", unwritten.size());
+				}
+				history.write();
+				// Leaves nothing behind for the next startup to replay
+				storage.flush();
+			}).get(30, TimeUnit.SECONDS);
+		} catch (ExecutionException | TimeoutException e) {
+			LOGGER.error("Timed out waiting for playtime data to be written.");
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			LOGGER.error("Interrupted while waiting for playtime data to be written.");
+		}
+	}
+}
@@ -0,0 +1,393 @@
+package net.nadar.timedrankup;
+
+import com.google.gson.stream.JsonWriter;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+// Read-only JSON endpoint for dashboards, on the JDK's HTTP server and a small pool of its own. Requests are answered
+// from an immutable snapshot of the leaderboard and the rank ladder that the server thread hands over every few
+// seconds and the pool sorts, so no request ever waits for or touches the server thread. A snapshot with the same
+// data as the previous one keeps it and its rendered responses. Every 200 carries an ETag derived from its own body,
+// so a response stays valid until its content changes, and a client that sends the ETag back in If-None-Match gets
+// an empty 304.
+//
+//   GET /api/player/<uuid or name>   playtime and leaderboard position of one player
+//   GET /api/top?limit=N&offset=M    a page of the leaderboard, at most MAX_LIMIT players
+//   GET /api/ranks                   the rank ladder
+public class PlaytimeQueryServer {
+
+	private static final Logger LOGGER = LogManager.getLogger();
+	private static final String PLAYER_PATH = "/api/player/";
+	private static final String TOP_PATH = "/api/top";
+	private static final String RANKS_PATH = "/api/ranks";
+	private static final int DEFAULT_LIMIT = 10;
+	private static final int MAX_LIMIT = 100;
+	private static final int MAX_CACHED_RESPONSES = 256; // Per snapshot; further distinct requests are rendered each time
+
+	private final HttpServer server;
+	private final ExecutorService executor;
+	private final Metrics metrics;
+	private final Function<String, UUID> idsByName; // Must be safe to call from any thread
+	private final Function<UUID, String> namesById; // Must be safe to call from any thread
+	private final AtomicBoolean building = new AtomicBoolean();
+	private volatile Snapshot snapshot; // Null until the first one is built
+
+	// Binds straight away; throws if the address cannot be bound
+	public PlaytimeQueryServer(String bindAddress, int port, int threads, Metrics metrics, Function<String, UUID> idsByName,
+							   Function<UUID, String> namesById) throws IOException {
+		this.metrics = metrics;
+		this.idsByName = idsByName;
+		this.namesById = namesById;
+		AtomicInteger threadCount = new AtomicInteger();
+		this.executor = Executors.newFixedThreadPool(Math.max(threads, 1), runnable -> {
+			Thread thread = new Thread(runnable, "TimedRankup-Http-" + threadCount.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+		this.server = HttpServer.create(new InetSocketAddress(bindAddress, port), 0);
+		server.createContext("/api/", this::handle);
+		server.setExecutor(executor);
+		server.start();
+		LOGGER.info("Playtime query endpoint listening on {}:{}", bindAddress, port);
+	}
+
+	// Called on the server thread with copies it no longer touches; they are sorted on the pool. Skipped while the
+	// previous snapshot is still being built.
+	public void publish(PlaytimeTable.Snapshot players, RankupConfig config) {
+		if (!building.compareAndSet(false, true)) {
+			return;
+		}
+		executor.execute(() -> {
+			try {
+				Snapshot built = Snapshot.build(players, config);
+				Snapshot current = snapshot;
+				if (current == null || current.contentHash != built.contentHash) {
+					snapshot = built;
+				}
+			} catch (RuntimeException e) {
+				LOGGER.error("Error building playtime query snapshot: {}", e.getMessage());
+			} finally {
+				building.set(false);
+			}
+		});
+	}
+
+	public void stop() {
+		server.stop(0);
+		executor.shutdownNow();
+	}
+
+	private void handle(HttpExchange exchange) throws IOException {
+		try {
+			metrics.httpRequests.increment();
+			String method = exchange.getRequestMethod();
+			boolean head = "HEAD".equals(method);
+			if (!head && !"GET".equals(method)) {
+				exchange.getResponseHeaders().set("Allow", "GET, HEAD");
+				send(exchange, new Response(405, error("Only GET and HEAD are supported")), false);
+				return;
+			}
+			Snapshot current = snapshot;
+			if (current == null) {
+				send(exchange, new Response(503, error("Playtime data is not available yet")), head);
+				return;
+			}
+			String path = exchange.getRequestURI().getPath();
+			String query = exchange.getRequestURI().getRawQuery();
+			String key = query != null ? path + '?' + query : path;
+			Response response = current.responses.get(key);
+			if (response == null) {
+				response = render(current, path, query);
+				if (current.responses.size() < MAX_CACHED_RESPONSES) {
+					current.responses.putIfAbsent(key, response);
+				}
+			}
+			if (response.etag != null) {
+				exchange.getResponseHeaders().set("ETag", response.etag);
+				exchange.getResponseHeaders().set("Cache-Control", "no-cache");
+				if (matches(exchange.getRequestHeaders().getFirst("If-None-Match"), response.etag)) {
+					metrics.httpNotModified.increment();
+					exchange.sendResponseHeaders(304, -1);
+					return;
+				}
+			}
+			send(exchange, response, head);
+		} catch (RuntimeException e) {
+			LOGGER.error("Error answering playtime query: {}", e.getMessage());
+			// Too late for a status once the headers are out; closing the exchange cuts the response short
+			if (exchange.getResponseCode() == -1) {
+				send(exchange, new Response(500, error("Internal error")), false);
+			}
+		} finally {
+			exchange.close();
+		}
+	}
+
+	private Response render(Snapshot current, String path, String query) {
+		if (path.startsWith(PLAYER_PATH) && path.length() > PLAYER_PATH.length()) {
+			return renderPlayer(current, path.substring(PLAYER_PATH.length()));
+		}
+		if (path.equals(TOP_PATH)) {
+			int limit = intParameter(query, "limit", DEFAULT_LIMIT);
+			int offset = intParameter(query, "offset", 0);
+			if (limit < 1 || limit > MAX_LIMIT || offset < 0) {
+				return new Response(400, error("limit must be between 1 and " + MAX_LIMIT + " and offset must not be negative"));
+			}
+			return renderTop(current, limit, offset);
+		}
+		if (path.equals(RANKS_PATH)) {
+			return renderRanks(current.config);
+		}
+		return new Response(404, error("Unknown endpoint"));
+	}
+
+	private Response renderPlayer(Snapshot current, String player) {
+		UUID playerId = parseUuid(player);
+		if (playerId == null) {
+			playerId = idsByName.apply(player);
+		}
+		int index = playerId != null ? (int) current.positions.get(playerId, 0L) - 1 : -1;
+		if (index < 0) {
+			return new Response(404, error("Player not found: " + player));
+		}
+		return json(writer -> {
+			writer.beginObject();
+			writePlayerFields(writer, current, index);
+			writer.name("players").value(current.size());
+			writer.endObject();
+		});
+	}
+
+	private Response renderTop(Snapshot current, int limit, int offset) {
+		return json(writer -> {
+			writer.beginObject();
+			writer.name("players").value(current.size());
+			writer.name("offset").value(offset);
+			writer.name("entries").beginArray();
+			for (int index = offset; index < Math.min(offset + limit, current.size()); index++) {
+				writer.beginObject();
+				writePlayerFields(writer, current, index);
+				writer.endObject();
+			}
+			writer.endArray();
+			writer.endObject();
+		});
+	}
+
+	private Response renderRanks(RankupConfig config) {
+		RankLadder ladder = config.ladder();
+		return json(writer -> {
+			writer.beginObject();
+			writer.name("ranks").beginArray();
+			for (int index = 0; index < ladder.size(); index++) {
+				writer.beginObject();
+				writer.name("name").value(ladder.name(index));
+				writer.name("playtimeThreshold").value(ladder.threshold(index));
+				if (ladder.recentThreshold(index) > 0) {
+					writer.name("recentPlaytimeThreshold").value(ladder.recentThreshold(index));
+					writer.name("recentWindowDays").value(ladder.windowDays(index));
+				}
+				if (ladder.requirement(index) != null) {
+					writer.name("requires").jsonValue(ladder.requirement(index).toJson().toString());
+				}
+				writer.endObject();
+			}
+			writer.endArray();
+			writer.endObject();
+		});
+	}
+
+	private void writePlayerFields(JsonWriter writer, Snapshot current, int index) throws IOException {
+		UUID playerId = new UUID(current.mostSigBits[index], current.leastSigBits[index]);
+		String name = namesById.apply(playerId);
+		writer.name("uuid").value(playerId.toString());
+		if (name != null) {
+			writer.name("name").value(name);
+		}
+		writer.name("playtime").value(current.playtimes[index]);
+		writer.name("position").value(index + 1);
+	}
+
+	private static Response json(Body body) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (JsonWriter writer = new JsonWriter(new OutputStreamWriter(bytes, StandardCharsets.UTF_8))) {
+			body.write(writer);
+		} catch (IOException e) {
+			throw new IllegalStateException(e); // Nothing to fail in memory
+		}
+		return new Response(200, bytes.toByteArray());
+	}
+
+	private static byte[] error(String message) {
+		return json(writer -> {
+			writer.beginObject();
+			writer.name("error").value(message);
+			writer.endObject();
+		}).body;
+	}
+
+	private static void send(HttpExchange exchange, Response response, boolean head) throws IOException {
+		exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+		if (head) {
+			exchange.sendResponseHeaders(response.status, -1);
+			return;
+		}
+		exchange.sendResponseHeaders(response.status, response.body.length);
+		try (OutputStream out = exchange.getResponseBody()) {
+			out.write(response.body);
+		}
+	}
+
+	// If-None-Match may list several tags, mark them weak or be *
+	private static boolean matches(String ifNoneMatch, String etag) {
+		if (ifNoneMatch == null) {
+			return false;
+		}
+		for (String tag : ifNoneMatch.split(",")) {
+			tag = tag.trim();
+			if (tag.startsWith("W/")) {
+				tag = tag.substring(2);
+			}
+			if (tag.equals("*") || tag.equals(etag)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	// Default if the parameter is missing, -1 if it is not a number
+	private static int intParameter(String query, String name, int defaultValue) {
+		if (query == null) {
+			return defaultValue;
+		}
+		for (String parameter : query.split("&")) {
+			if (parameter.startsWith(name + "=")) {
+				try {
+					return Integer.parseInt(parameter.substring(name.length() + 1));
+				} catch (NumberFormatException e) {
+					return -1;
+				}
+			}
+		}
+		return defaultValue;
+	}
+
+	private static UUID parseUuid(String value) {
+		if (value.length() != 36) {
+			return null;
+		}
+		try {
+			return UUID.fromString(value);
+		} catch (IllegalArgumentException e) {
+			return null;
+		}
+	}
+
+	@FunctionalInterface
+	private interface Body {
+		void write(JsonWriter writer) throws IOException;
+	}
+
+	private static final class Response {
+		private final int status;
+		private final byte[] body;
+		private final String etag; // Only for 200s
+
+		private Response(int status, byte[] body) {
+			this.status = status;
+			this.body = body;
+			this.etag = status == 200 ? etag(body) : null;
+		}
+
+		private static String etag(byte[] body) {
+			long hash = body.length;
+			for (byte value : body) {
+				hash = hash * 31 + value;
+			}
+			return '"' + Long.toHexString(PlaytimeStore.mix(hash)) + '"';
+		}
+	}
+
+	// Every ranked player in leaderboard order with the ladder, never modified once built. Names are looked up when a
+	// response is rendered, so a rename only shows once the data changes.
+	private static final class Snapshot {
+		private final long[] mostSigBits;
+		private final long[] leastSigBits;
+		private final long[] playtimes;
+		private final PlaytimeTable positions = new PlaytimeTable(); // Position of each player, starting at 1
+		private final RankupConfig config;
+		private final long contentHash; // Of the players and the ladder, to tell whether a new snapshot changed anything
+		private final Map<String, Response> responses = new ConcurrentHashMap<>(); // Rendered from this snapshot, by path and query
+
+		private Snapshot(long[] mostSigBits, long[] leastSigBits, long[] playtimes, RankupConfig config, long contentHash) {
+			this.mostSigBits = mostSigBits;
+			this.leastSigBits = leastSigBits;
+			this.playtimes = playtimes;
+			this.config = config;
+			this.contentHash = contentHash;
+			for (int index = 0; index < playtimes.length; index++) {
+				positions.put(new UUID(mostSigBits[index], leastSigBits[index]), index + 1);
+			}
+		}
+
+		// Sorts like PlaytimeLeaderboard: more playtime first, then by UUID
+		private static Snapshot build(PlaytimeTable.Snapshot players, RankupConfig config) {
+			int size = players.size();
+			Integer[] order = new Integer[size];
+			for (int i = 0; i < size; i++) {
+				order[i] = i;
+			}
+			Arrays.sort(order, (a, b) -> {
+				if (players.playtime(a) != players.playtime(b)) {
+					return players.playtime(a) > players.playtime(b) ? -1 : 1;
+				}
+				if (players.mostSigBits(a) != players.mostSigBits(b)) {
+					return players.mostSigBits(a) < players.mostSigBits(b) ? -1 : 1;
+				}
+				return Long.compare(players.leastSigBits(a), players.leastSigBits(b));
+			});
+			long[] mostSigBits = new long[size];
+			long[] leastSigBits = new long[size];
+			long[] playtimes = new long[size];
+			long hash = size;
+			for (int i = 0; i < size; i++) {
+				mostSigBits[i] = players.mostSigBits(order[i]);
+				leastSigBits[i] = players.leastSigBits(order[i]);
+				playtimes[i] = players.playtime(order[i]);
+				hash = PlaytimeStore.mix(hash ^ mostSigBits[i]);
+				hash = PlaytimeStore.mix(hash ^ leastSigBits[i]);
+				hash = PlaytimeStore.mix(hash ^ playtimes[i]);
+			}
+			RankLadder ladder = config.ladder();
+			for (int i = 0; i < ladder.size(); i++) {
+				hash = PlaytimeStore.mix(hash ^ ladder.name(i).hashCode());
+				hash = PlaytimeStore.mix(hash ^ ladder.threshold(i));
+				hash = PlaytimeStore.mix(hash ^ ladder.recentThreshold(i) ^ ((long) ladder.windowDays(i) << 48));
+				hash = PlaytimeStore.mix(hash ^ (ladder.requirement(i) != null ? ladder.requirement(i).hashCode() : 0));
+			}
+			return new Snapshot(mostSigBits, leastSigBits, playtimes, config, hash);
+		}
+
+		private int size() {
+			return playtimes.length;
+		}
+	}
+}
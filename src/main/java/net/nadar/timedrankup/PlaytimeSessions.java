@@ -0,0 +1,139 @@
+package net.nadar.timedrankup;
+
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import java.util.function.LongSupplier;
+
+// Tracks when each online player's current session started on the monotonic clock. A player's live playtime is
+// their stored total plus the whole seconds of the running session, so nothing is credited while they play; the
+// session is only folded into the stored total when it ends. Fractions of a second are dropped at that point.
+// Sessions are started and ended on the server thread; live totals may be read from any thread, and the
+// persistence worker checkpoints the running sessions to write them out as increments. Each checkpointed or
+// ended stretch is also credited to the history on the day it is handed out.
+public class PlaytimeSessions {
+
+	private final PlaytimeTable totals;
+	private final PlaytimeHistory history;
+	private final Map<UUID, Session> sessions = new ConcurrentHashMap<>();
+
+	public PlaytimeSessions(PlaytimeTable totals, PlaytimeHistory history) {
+		this.totals = totals;
+		this.history = history;
+	}
+
+	public void begin(UUID playerId, long nowNanos) {
+		sessions.putIfAbsent(playerId, new Session(nowNanos));
+	}
+
+	// Folds the session into the stored total and returns the seconds no checkpoint has written yet, or -1 if the
+	// player had no session
+	public long end(UUID playerId, long nowNanos) {
+		// The session is dropped before the total grows, and readers look at the total before the session,
+		// so a concurrent live read can miss the session but never counts it twice
+		Session session = sessions.remove(playerId);
+		if (session == null) {
+			return -1;
+		}
+		long seconds = elapsedSeconds(session.start, nowNanos);
+		long unwritten;
+		synchronized (session) {
+			session.ended = true;
+			unwritten = seconds - session.checkpointed;
+			history.add(playerId, unwritten);
+		}
+		totals.addAndGet(playerId, seconds);
+		return unwritten;
+	}
+
+	// Ends every running session, e.g. before the final save on shutdown
+	public void endAll(long nowNanos, PlaytimeStore.PlaytimeConsumer ended) {
+		for (UUID playerId : sessions.keySet()) {
+			long unwritten = end(playerId, nowNanos);
+			if (unwritten >= 0) {
+				ended.accept(playerId, unwritten);
+			}
+		}
+	}
+
+	// Hands each running session's seconds since its previous checkpoint to the sink. The stored totals are left
+	// alone; the sessions still count in full towards live playtime until they end.
+	public void checkpoint(long nowNanos, PlaytimeStore.PlaytimeConsumer sink) {
+		for (Map.Entry<UUID, Session> entry : sessions.entrySet()) {
+			Session session = entry.getValue();
+			long seconds = elapsedSeconds(session.start, nowNanos);
+			long increment;
+			synchronized (session) {
+				if (session.ended || seconds <= session.checkpointed) {
+					continue;
+				}
+				increment = seconds - session.checkpointed;
+				session.checkpointed = seconds;
+				history.add(entry.getKey(), increment);
+			}
+			sink.accept(entry.getKey(), increment);
+		}
+	}
+
+	// Reads how many seconds of the player's current session checkpoints have handed out so far. It keeps reading
+	// the same session after it ended, when the count no longer changes; 0 if the player has no session.
+	public LongSupplier checkpointedSeconds(UUID playerId) {
+		Session session = sessions.get(playerId);
+		if (session == null) {
+			return () -> 0;
+		}
+		return () -> {
+			synchronized (session) {
+				return session.checkpointed;
+			}
+		};
+	}
+
+	public long playtime(UUID playerId, long nowNanos) {
+		long total = totals.get(playerId, 0L);
+		Session session = sessions.get(playerId);
+		return session != null ? total + elapsedSeconds(session.start, nowNanos) : total;
+	}
+
+	// Seconds played within the last windowDays days, counting the running session's time since its last checkpoint
+	// as played today. The history is read under the session's lock, which every credit to it from a session holds
+	// too, so a checkpoint in between is never counted twice.
+	public long recentPlaytime(UUID playerId, int windowDays, long nowNanos) {
+		Session session = sessions.get(playerId);
+		if (session == null) {
+			return history.windowSum(playerId, windowDays);
+		}
+		long seconds = elapsedSeconds(session.start, nowNanos);
+		synchronized (session) {
+			long uncredited = session.ended ? 0 : Math.max(seconds - session.checkpointed, 0);
+			return history.windowSum(playerId, windowDays) + uncredited;
+		}
+	}
+
+	public boolean isActive(UUID playerId) {
+		return sessions.containsKey(playerId);
+	}
+
+	public int size() {
+		return sessions.size();
+	}
+
+	public void forEachActive(Consumer<UUID> action) {
+		sessions.keySet().forEach(action);
+	}
+
+	private static long elapsedSeconds(long startNanos, long nowNanos) {
+		return Math.max(nowNanos - startNanos, 0) / 1_000_000_000L;
+	}
+
+	private static final class Session {
+		private final long start; // System.nanoTime() at join
+		private long checkpointed; // Guarded by this
+		private boolean ended; // Guarded by this
+
+		private Session(long start) {
+			this.start = start;
+		}
+	}
+}
@@ -0,0 +1,31 @@
+package net.nadar.timedrankup;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.UUID;
+
+// Where playtime totals are kept. Writes are increments, so several servers can add to the same shared totals.
+// Apart from loadAll, which runs during startup, every method is only called on the persistence worker thread.
+public interface PlaytimeStorage {
+
+	// Hands every stored total to the sink
+	void loadAll(PlaytimeStore.PlaytimeConsumer sink) throws IOException;
+
+	// True if other servers write to the same totals, so a player's total has to be read again when they join
+	boolean isShared();
+
+	// Current total of one player, 0 if they have none
+	long load(UUID playerId) throws IOException;
+
+	// Adds each player's seconds to their total. Nothing has been written if this throws.
+	void addPlaytime(Map<UUID, Long> seconds) throws IOException;
+
+	// Housekeeping after a write, e.g. compaction; returns true if any work was done
+	boolean maintain();
+
+	// Makes everything written so far durable and releases what an idle storage need not hold, e.g. when the server
+	// stops. The storage stays usable for the next server an integrated client starts.
+	void flush();
+
+	void close();
+}
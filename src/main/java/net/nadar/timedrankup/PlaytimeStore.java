@@ -0,0 +1,265 @@
+package net.nadar.timedrankup;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.UUID;
+import java.util.zip.CRC32;
+
+// Memory-mapped playtime store made of fixed 24-byte records (UUID high bits, UUID low bits, seconds).
+// The record area is itself an open-addressing hash table, so lookups and updates touch a single slot
+// at a known offset instead of rewriting or re-parsing the whole file.
+public class PlaytimeStore implements AutoCloseable {
+
+	private static final Logger LOGGER = LogManager.getLogger();
+	private static final int MAGIC = 0x54525054; // "TRPT"
+	private static final int VERSION = 1;
+	public static final int RECORD_SIZE = 24;
+	private static final int HEADER_SIZE = 64;
+	private static final int HEADER_CHECKSUM_OFFSET = 56;
+	private static final int INITIAL_CAPACITY = 1024;
+	private static final double MAX_LOAD_FACTOR = 0.6;
+
+	private final Path file;
+	private final Path growFile;
+	private FileChannel channel;
+	private MappedByteBuffer buffer;
+	private long capacity;
+	private long size;
+
+	private PlaytimeStore(Path file) {
+		this.file = file;
+		this.growFile = file.resolveSibling(file.getFileName() + ".grow");
+	}
+
+	public static PlaytimeStore open(Path file) throws IOException {
+		PlaytimeStore store = new PlaytimeStore(file);
+		Files.createDirectories(file.getParent());
+		store.recoverInterruptedGrow();
+		store.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		if (store.channel.size() == 0) {
+			store.initialize(INITIAL_CAPACITY);
+		} else {
+			store.map();
+			store.readHeader();
+		}
+		return store;
+	}
+
+	public long size() {
+		return size;
+	}
+
+	public long get(UUID playerId, long defaultValue) {
+		long slot = findSlot(playerId.getMostSignificantBits(), playerId.getLeastSignificantBits());
+		int offset = recordOffset(slot);
+		if (isEmpty(offset)) {
+			return defaultValue;
+		}
+		return buffer.getLong(offset + 16);
+	}
+
+	public void put(UUID playerId, long playtime) throws IOException {
+		long mostSigBits = playerId.getMostSignificantBits();
+		long leastSigBits = playerId.getLeastSignificantBits();
+		if (mostSigBits == 0 && leastSigBits == 0) {
+			return; // The nil UUID marks empty slots and is never a real player
+		}
+		int offset = recordOffset(findSlot(mostSigBits, leastSigBits));
+		if (isEmpty(offset)) {
+			if (size + 1 > capacity * MAX_LOAD_FACTOR) {
+				grow();
+				offset = recordOffset(findSlot(mostSigBits, leastSigBits));
+			}
+			buffer.putLong(offset, mostSigBits);
+			buffer.putLong(offset + 8, leastSigBits);
+			size++;
+			writeHeader();
+		}
+		buffer.putLong(offset + 16, playtime);
+	}
+
+	public void forEach(PlaytimeConsumer consumer) {
+		for (long slot = 0; slot < capacity; slot++) {
+			int offset = recordOffset(slot);
+			if (!isEmpty(offset)) {
+				consumer.accept(new UUID(buffer.getLong(offset), buffer.getLong(offset + 8)), buffer.getLong(offset + 16));
+			}
+		}
+	}
+
+	public void force() {
+		buffer.force();
+	}
+
+	@Override
+	public void close() throws IOException {
+		force();
+		channel.close();
+	}
+
+	private long findSlot(long mostSigBits, long leastSigBits) {
+		long mask = capacity - 1;
+		long slot = mix(mostSigBits ^ leastSigBits) & mask;
+		while (true) {
+			int offset = recordOffset(slot);
+			if (isEmpty(offset) || (buffer.getLong(offset) == mostSigBits && buffer.getLong(offset + 8) == leastSigBits)) {
+				return slot;
+			}
+			slot = (slot + 1) & mask;
+		}
+	}
+
+	private boolean isEmpty(int offset) {
+		return buffer.getLong(offset) == 0 && buffer.getLong(offset + 8) == 0;
+	}
+
+	private static int recordOffset(long slot) {
+		return (int) (HEADER_SIZE + slot * RECORD_SIZE);
+	}
+
+	static long mix(long hash) {
+		hash ^= hash >>> 33;
+		hash *= 0xff51afd7ed558ccdL;
+		hash ^= hash >>> 33;
+		hash *= 0xc4ceb9fe1a85ec53L;
+		hash ^= hash >>> 33;
+		return hash;
+	}
+
+	private void initialize(long newCapacity) throws IOException {
+		capacity = newCapacity;
+		size = 0;
+		channel.truncate(0);
+		channel.write(ByteBuffer.allocate(1), fileLength(newCapacity) - 1); // Extend the file to its full length
+		map();
+		writeHeader();
+	}
+
+	private static long fileLength(long capacity) {
+		return HEADER_SIZE + capacity * RECORD_SIZE;
+	}
+
+	private void map() throws IOException {
+		long length = channel.size();
+		if (length > Integer.MAX_VALUE) {
+			throw new IOException("Playtime store is too large to map: " + length + " bytes");
+		}
+		buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, length);
+	}
+
+	private void readHeader() throws IOException {
+		if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+			throw new IOException("Not a TimedRankup playtime store: " + file);
+		}
+		int version = buffer.getInt(4);
+		if (version != VERSION) {
+			throw new IOException("Unsupported playtime store version " + version + " in " + file);
+		}
+		if (buffer.getInt(8) != RECORD_SIZE || headerChecksum(buffer) != buffer.getLong(HEADER_CHECKSUM_OFFSET)) {
+			throw new IOException("Corrupt playtime store header in " + file);
+		}
+		capacity = buffer.getLong(16);
+		size = buffer.getLong(24);
+		if (Long.bitCount(capacity) != 1 || buffer.capacity() != fileLength(capacity)) {
+			throw new IOException("Playtime store " + file + " is truncated");
+		}
+	}
+
+	private void writeHeader() {
+		writeHeader(buffer, capacity, size);
+	}
+
+	private static void writeHeader(ByteBuffer target, long capacity, long size) {
+		target.putInt(0, MAGIC);
+		target.putInt(4, VERSION);
+		target.putInt(8, RECORD_SIZE);
+		target.putInt(12, 0);
+		target.putLong(16, capacity);
+		target.putLong(24, size);
+		target.putLong(HEADER_CHECKSUM_OFFSET, headerChecksum(target));
+	}
+
+	private static long headerChecksum(ByteBuffer source) {
+		CRC32 crc = new CRC32();
+		for (int i = 0; i < HEADER_CHECKSUM_OFFSET; i++) {
+			crc.update(source.get(i));
+		}
+		return crc.getValue();
+	}
+
+	// Rehashes into a side file first and then copies it over the live file. A crash during the copy
+	// leaves a complete side file behind, which recoverInterruptedGrow() finishes copying on the next open.
+	// Copying instead of renaming keeps this working on platforms that refuse to replace a mapped file.
+	private void grow() throws IOException {
+		long newCapacity = capacity * 2;
+		ByteBuffer grown = ByteBuffer.allocate(Math.toIntExact(fileLength(newCapacity)));
+		long mask = newCapacity - 1;
+		for (long slot = 0; slot < capacity; slot++) {
+			int offset = recordOffset(slot);
+			if (isEmpty(offset)) {
+				continue;
+			}
+			long mostSigBits = buffer.getLong(offset);
+			long leastSigBits = buffer.getLong(offset + 8);
+			long target = mix(mostSigBits ^ leastSigBits) & mask;
+			while (grown.getLong(recordOffset(target)) != 0 || grown.getLong(recordOffset(target) + 8) != 0) {
+				target = (target + 1) & mask;
+			}
+			int targetOffset = recordOffset(target);
+			grown.putLong(targetOffset, mostSigBits);
+			grown.putLong(targetOffset + 8, leastSigBits);
+			grown.putLong(targetOffset + 16, buffer.getLong(offset + 16));
+		}
+		writeHeader(grown, newCapacity, size);
+
+		try (FileChannel growChannel = FileChannel.open(growFile, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+			writeFully(growChannel, grown.duplicate().clear());
+			growChannel.force(true);
+		}
+		writeFully(channel, grown.clear());
+		channel.force(true);
+		Files.delete(growFile);
+		map();
+		capacity = newCapacity;
+	}
+
+	private void recoverInterruptedGrow() throws IOException {
+		if (!Files.exists(growFile)) {
+			return;
+		}
+		ByteBuffer grown = ByteBuffer.wrap(Files.readAllBytes(growFile));
+		boolean complete = grown.capacity() >= HEADER_SIZE
+				&& grown.getInt(0) == MAGIC
+				&& headerChecksum(grown) == grown.getLong(HEADER_CHECKSUM_OFFSET)
+				&& grown.capacity() == fileLength(grown.getLong(16));
+		if (complete) {
+			LOGGER.warn("Completing an interrupted resize of the playtime store {}", file);
+			try (FileChannel target = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+				writeFully(target, grown);
+				target.force(true);
+			}
+		}
+		// An incomplete side file means the live file was never touched
+		Files.delete(growFile);
+	}
+
+	private static void writeFully(FileChannel target, ByteBuffer source) throws IOException {
+		long position = 0;
+		while (source.hasRemaining()) {
+			position += target.write(source, position);
+		}
+	}
+
+	@FunctionalInterface
+	public interface PlaytimeConsumer {
+		void accept(UUID playerId, long playtime);
+	}
+}
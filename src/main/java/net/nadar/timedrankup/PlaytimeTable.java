@@ -0,0 +1,270 @@
+package net.nadar.timedrankup;
+
+import java.util.UUID;
+import java.util.concurrent.locks.StampedLock;
+
+// UUID -> long playtime table keyed on the two halves of the UUID. Entries live in one flat long array
+// (most significant bits, least significant bits, playtime), so an update neither boxes a Long nor
+// allocates a map entry and a lookup usually touches a single cache line. The table is split into independently locked
+// stripes: writers take the stripe's write lock, readers use an optimistic read and only fall back to the
+// read lock when a writer got in the way.
+public class PlaytimeTable {
+
+	private static final int STRIPE_COUNT = 16; // Must be a power of two
+	private static final int INITIAL_STRIPE_CAPACITY = 64;
+	private static final float MAX_LOAD_FACTOR = 0.5f;
+
+	private final Stripe[] stripes = new Stripe[STRIPE_COUNT];
+
+	public PlaytimeTable() {
+		for (int i = 0; i < STRIPE_COUNT; i++) {
+			stripes[i] = new Stripe();
+		}
+	}
+
+	public long get(UUID playerId, long defaultValue) {
+		return get(playerId.getMostSignificantBits(), playerId.getLeastSignificantBits(), defaultValue);
+	}
+
+	public long get(long mostSigBits, long leastSigBits, long defaultValue) {
+		long hash = PlaytimeStore.mix(mostSigBits ^ leastSigBits);
+		return stripeFor(hash).get(mostSigBits, leastSigBits, hash, defaultValue);
+	}
+
+	public boolean containsKey(UUID playerId) {
+		return get(playerId, Long.MIN_VALUE) != Long.MIN_VALUE;
+	}
+
+	public void put(UUID playerId, long playtime) {
+		long mostSigBits = playerId.getMostSignificantBits();
+		long leastSigBits = playerId.getLeastSignificantBits();
+		long hash = PlaytimeStore.mix(mostSigBits ^ leastSigBits);
+		stripeFor(hash).update(mostSigBits, leastSigBits, hash, playtime, false);
+	}
+
+	// Adds to the player's playtime (starting from zero) and returns the new total
+	public long addAndGet(UUID playerId, long delta) {
+		long mostSigBits = playerId.getMostSignificantBits();
+		long leastSigBits = playerId.getLeastSignificantBits();
+		long hash = PlaytimeStore.mix(mostSigBits ^ leastSigBits);
+		return stripeFor(hash).update(mostSigBits, leastSigBits, hash, delta, true);
+	}
+
+	// Removes the player and returns their playtime, or defaultValue if they had none
+	public long remove(UUID playerId, long defaultValue) {
+		long mostSigBits = playerId.getMostSignificantBits();
+		long leastSigBits = playerId.getLeastSignificantBits();
+		long hash = PlaytimeStore.mix(mostSigBits ^ leastSigBits);
+		return stripeFor(hash).remove(mostSigBits, leastSigBits, hash, defaultValue);
+	}
+
+	public int size() {
+		int size = 0;
+		for (Stripe stripe : stripes) {
+			long stamp = stripe.lock.readLock();
+			try {
+				size += stripe.size;
+			} finally {
+				stripe.lock.unlockRead(stamp);
+			}
+		}
+		return size;
+	}
+
+	// Copies every stripe while holding all stripe read locks, so the snapshot reflects a single point in time
+	public Snapshot snapshot() {
+		long[] stamps = new long[STRIPE_COUNT];
+		for (int i = 0; i < STRIPE_COUNT; i++) {
+			stamps[i] = stripes[i].lock.readLock();
+		}
+		try {
+			int size = 0;
+			for (Stripe stripe : stripes) {
+				size += stripe.size;
+			}
+			long[] entries = new long[size * 3];
+			int index = 0;
+			for (Stripe stripe : stripes) {
+				long[] slots = stripe.slots;
+				for (int offset = 0; offset < slots.length; offset += 3) {
+					if (slots[offset] != 0 || slots[offset + 1] != 0) {
+						System.arraycopy(slots, offset, entries, index, 3);
+						index += 3;
+					}
+				}
+			}
+			return new Snapshot(entries);
+		} finally {
+			for (int i = STRIPE_COUNT - 1; i >= 0; i--) {
+				stripes[i].lock.unlockRead(stamps[i]);
+			}
+		}
+	}
+
+	private Stripe stripeFor(long hash) {
+		return stripes[(int) (hash >>> 60) & (STRIPE_COUNT - 1)];
+	}
+
+	public static class Snapshot {
+		private final long[] entries;
+
+		private Snapshot(long[] entries) {
+			this.entries = entries;
+		}
+
+		public int size() {
+			return entries.length / 3;
+		}
+
+		public long mostSigBits(int index) {
+			return entries[index * 3];
+		}
+
+		public long leastSigBits(int index) {
+			return entries[index * 3 + 1];
+		}
+
+		public long playtime(int index) {
+			return entries[index * 3 + 2];
+		}
+
+		public void forEach(PlaytimeStore.PlaytimeConsumer consumer) {
+			for (int offset = 0; offset < entries.length; offset += 3) {
+				consumer.accept(new UUID(entries[offset], entries[offset + 1]), entries[offset + 2]);
+			}
+		}
+	}
+
+	private static class Stripe {
+		private final StampedLock lock = new StampedLock();
+		// Triples of most significant bits, least significant bits and playtime; an all-zero key marks an empty slot
+		private long[] slots = new long[INITIAL_STRIPE_CAPACITY * 3];
+		private int size;
+
+		private long get(long mostSigBits, long leastSigBits, long hash, long defaultValue) {
+			long stamp = lock.tryOptimisticRead();
+			if (stamp != 0) {
+				long value = find(slots, mostSigBits, leastSigBits, hash, defaultValue);
+				if (lock.validate(stamp)) {
+					return value;
+				}
+			}
+			stamp = lock.readLock();
+			try {
+				return find(slots, mostSigBits, leastSigBits, hash, defaultValue);
+			} finally {
+				lock.unlockRead(stamp);
+			}
+		}
+
+		private static long find(long[] slots, long mostSigBits, long leastSigBits, long hash, long defaultValue) {
+			int capacity = slots.length / 3;
+			int slot = (int) hash & (capacity - 1);
+			// Bounded by the table length so a torn optimistic read can never spin forever
+			for (int probes = 0; probes < capacity; probes++) {
+				int offset = slot * 3;
+				long slotMostSigBits = slots[offset];
+				long slotLeastSigBits = slots[offset + 1];
+				if (slotMostSigBits == mostSigBits && slotLeastSigBits == leastSigBits) {
+					return slots[offset + 2];
+				}
+				if (slotMostSigBits == 0 && slotLeastSigBits == 0) {
+					return defaultValue;
+				}
+				slot = (slot + 1) & (capacity - 1);
+			}
+			return defaultValue;
+		}
+
+		private long update(long mostSigBits, long leastSigBits, long hash, long value, boolean add) {
+			if (mostSigBits == 0 && leastSigBits == 0) {
+				return 0; // The nil UUID marks empty slots and is never a real player
+			}
+			long stamp = lock.writeLock();
+			try {
+				int offset = probe(slots, mostSigBits, leastSigBits, hash);
+				if (slots[offset] != 0 || slots[offset + 1] != 0) {
+					long newValue = add ? slots[offset + 2] + value : value;
+					slots[offset + 2] = newValue;
+					return newValue;
+				}
+				if (size + 1 > (slots.length / 3) * MAX_LOAD_FACTOR) {
+					slots = resize(slots);
+					offset = probe(slots, mostSigBits, leastSigBits, hash);
+				}
+				// The value is written before the key so an optimistic reader never sees a key with a stale value
+				slots[offset + 2] = value;
+				slots[offset + 1] = leastSigBits;
+				slots[offset] = mostSigBits;
+				size++;
+				return value;
+			} finally {
+				lock.unlockWrite(stamp);
+			}
+		}
+
+		private long remove(long mostSigBits, long leastSigBits, long hash, long defaultValue) {
+			long stamp = lock.writeLock();
+			try {
+				int offset = probe(slots, mostSigBits, leastSigBits, hash);
+				if (slots[offset] == 0 && slots[offset + 1] == 0) {
+					return defaultValue;
+				}
+				long value = slots[offset + 2];
+				// Shift later members of the probe run back so lookups never stop at the hole
+				int mask = slots.length / 3 - 1;
+				int hole = offset / 3;
+				int slot = hole;
+				while (true) {
+					slot = (slot + 1) & mask;
+					int slotOffset = slot * 3;
+					if (slots[slotOffset] == 0 && slots[slotOffset + 1] == 0) {
+						break;
+					}
+					int home = (int) PlaytimeStore.mix(slots[slotOffset] ^ slots[slotOffset + 1]) & mask;
+					// Move the entry only if its home slot is not cyclically between the hole and its current slot
+					if (((slot - home) & mask) >= ((slot - hole) & mask)) {
+						System.arraycopy(slots, slotOffset, slots, hole * 3, 3);
+						hole = slot;
+					}
+				}
+				slots[hole * 3] = 0;
+				slots[hole * 3 + 1] = 0;
+				slots[hole * 3 + 2] = 0;
+				size--;
+				return value;
+			} finally {
+				lock.unlockWrite(stamp);
+			}
+		}
+
+		// Offset of the player's slot, or of the empty slot where they would be inserted
+		private static int probe(long[] slots, long mostSigBits, long leastSigBits, long hash) {
+			int mask = slots.length / 3 - 1;
+			int slot = (int) hash & mask;
+			while (true) {
+				int offset = slot * 3;
+				long slotMostSigBits = slots[offset];
+				long slotLeastSigBits = slots[offset + 1];
+				if ((slotMostSigBits == mostSigBits && slotLeastSigBits == leastSigBits) || (slotMostSigBits == 0 && slotLeastSigBits == 0)) {
+					return offset;
+				}
+				slot = (slot + 1) & mask;
+			}
+		}
+
+		private static long[] resize(long[] old) {
+			long[] resized = new long[old.length * 2];
+			for (int offset = 0; offset < old.length; offset += 3) {
+				long mostSigBits = old[offset];
+				long leastSigBits = old[offset + 1];
+				if (mostSigBits == 0 && leastSigBits == 0) {
+					continue;
+				}
+				int target = probe(resized, mostSigBits, leastSigBits, PlaytimeStore.mix(mostSigBits ^ leastSigBits));
+				System.arraycopy(old, offset, resized, target, 3);
+			}
+			return resized;
+		}
+	}
+}
@@ -0,0 +1,119 @@
+package net.nadar.timedrankup;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+// Writes rank promotions straight to the permission backend off the server thread. Requests are collected during a sweep and
+// submitted as one batch; a player with several requests in the same batch only gets the last one written.
+public class PromotionPipeline {
+
+	private static final Logger LOGGER = LogManager.getLogger();
+	private final PermissionBackend backend;
+	private final Metrics metrics;
+	private final Executor serverExecutor;
+	private final PromotionListener listener;
+	private final ExecutorService executor;
+	private final Map<UUID, String> pendingPromotions = new HashMap<>(); // Only touched on the server thread
+	private final Set<UUID> inFlight = ConcurrentHashMap.newKeySet();
+
+	public PromotionPipeline(PermissionBackend backend, Metrics metrics, Executor serverExecutor, PromotionListener listener) {
+		this.backend = backend;
+		this.metrics = metrics;
+		this.serverExecutor = serverExecutor;
+		this.listener = listener;
+		this.executor = Executors.newSingleThreadExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "TimedRankup-Promotions");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	public void request(UUID playerId, String rankName) {
+		pendingPromotions.put(playerId, rankName);
+	}
+
+	// True while a promotion for the player is queued or being written
+	public boolean isPending(UUID playerId) {
+		return pendingPromotions.containsKey(playerId) || inFlight.contains(playerId);
+	}
+
+	// Promotions handed to the backend that have not completed yet
+	public int inFlight() {
+		return inFlight.size();
+	}
+
+	// Submits the queued promotions as one batch. Players whose previous promotion is still being written stay
+	// queued so two writes for the same user never race.
+	public void flush() {
+		if (pendingPromotions.isEmpty()) {
+			return;
+		}
+		Map<UUID, String> batch = new HashMap<>();
+		Iterator<Map.Entry<UUID, String>> iterator = pendingPromotions.entrySet().iterator();
+		while (iterator.hasNext()) {
+			Map.Entry<UUID, String> entry = iterator.next();
+			if (inFlight.add(entry.getKey())) {
+				batch.put(entry.getKey(), entry.getValue());
+				iterator.remove();
+			}
+		}
+		if (!batch.isEmpty()) {
+			executor.execute(() -> writeBatch(batch));
+		}
+	}
+
+	public void shutdown() {
+		flush();
+		executor.shutdown();
+		try {
+			if (!executor.awaitTermination(10, TimeUnit.SECONDS)) {
+				LOGGER.error("Timed out waiting for rank promotions to be submitted.");
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void writeBatch(Map<UUID, String> batch) {
+		for (Map.Entry<UUID, String> entry : batch.entrySet()) {
+			UUID playerId = entry.getKey();
+			String rankName = entry.getValue();
+			long start = System.nanoTime();
+			CompletableFuture<Void> write;
+			try {
+				write = backend.setParentGroup(playerId, rankName);
+			} catch (RuntimeException e) {
+				write = CompletableFuture.failedFuture(e);
+			}
+			write.whenComplete((result, error) -> {
+				inFlight.remove(playerId);
+				metrics.promotionWrite.recordSince(start);
+				if (error == null) {
+					metrics.promotionsSucceeded.increment();
+				} else {
+					metrics.promotionsFailed.increment();
+					LOGGER.error("Error granting rank {} to player {}: {}", rankName, playerId, error.getMessage());
+				}
+				serverExecutor.execute(() -> listener.onPromotionComplete(playerId, rankName, error));
+			});
+		}
+	}
+
+	@FunctionalInterface
+	public interface PromotionListener {
+		// Called on the server thread; error is null if the promotion was written
+		void onPromotionComplete(UUID playerId, String rankName, Throwable error);
+	}
+}
@@ -0,0 +1,141 @@
+package net.nadar.timedrankup;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.function.Consumer;
+
+// Priority queue of the times at which each online player next needs a rank check. A player is only evaluated
+// once their deadline has passed, so players who are far from their next threshold cost nothing per sweep.
+// Every player keeps one deadline object until they are cancelled, and the heap tracks each deadline's slot, so
+// moving a deadline sifts it in place: rescheduling and polling allocate nothing once the arrays have grown.
+// Not thread-safe; only used on the server thread.
+public class PromotionScheduler {
+
+	private static final int NOT_QUEUED = -1;
+	private final Map<UUID, Deadline> deadlines = new HashMap<>(); // Every player scheduled since they were last cancelled
+	private Deadline[] heap = new Deadline[64];
+	private int size;
+	private final ArrayList<UUID> due = new ArrayList<>(heap.length); // Grown with the heap, so polling never grows it
+
+	// Replaces any earlier deadline the player had
+	public void schedule(UUID playerId, long time) {
+		Deadline deadline = deadlines.get(playerId);
+		if (deadline == null) {
+			deadline = new Deadline(playerId);
+			deadlines.put(playerId, deadline);
+		}
+		long previous = deadline.time;
+		deadline.time = time;
+		if (deadline.index == NOT_QUEUED) {
+			if (size == heap.length) {
+				heap = Arrays.copyOf(heap, size * 2);
+				due.ensureCapacity(heap.length);
+			}
+			deadline.index = size;
+			heap[size++] = deadline;
+			siftUp(deadline.index);
+		} else if (time < previous) {
+			siftUp(deadline.index);
+		} else {
+			siftDown(deadline.index);
+		}
+	}
+
+	public void cancel(UUID playerId) {
+		Deadline deadline = deadlines.remove(playerId);
+		if (deadline != null && deadline.index != NOT_QUEUED) {
+			removeAt(deadline.index);
+		}
+	}
+
+	public boolean isScheduled(UUID playerId) {
+		Deadline deadline = deadlines.get(playerId);
+		return deadline != null && deadline.index != NOT_QUEUED;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	// Hands every player whose deadline is at or before now to the action, earliest first. Due players are removed
+	// before any action runs, so an action may schedule them again, even for a time that is already due.
+	public void pollDue(long now, Consumer<UUID> action) {
+		while (size > 0 && heap[0].time <= now) {
+			Deadline deadline = heap[0];
+			removeAt(0);
+			due.add(deadline.playerId);
+		}
+		try {
+			for (int i = 0; i < due.size(); i++) {
+				action.accept(due.get(i));
+			}
+		} finally {
+			due.clear();
+		}
+	}
+
+	// The deadline object stays in the map so scheduling the player again reuses it
+	private void removeAt(int index) {
+		Deadline removed = heap[index];
+		removed.index = NOT_QUEUED;
+		size--;
+		if (index == size) {
+			heap[size] = null;
+			return;
+		}
+		Deadline last = heap[size];
+		heap[size] = null;
+		heap[index] = last;
+		last.index = index;
+		siftUp(index);
+		siftDown(last.index);
+	}
+
+	private void siftUp(int index) {
+		Deadline deadline = heap[index];
+		while (index > 0) {
+			int parent = (index - 1) >>> 1;
+			if (heap[parent].time <= deadline.time) {
+				break;
+			}
+			place(heap[parent], index);
+			index = parent;
+		}
+		place(deadline, index);
+	}
+
+	private void siftDown(int index) {
+		Deadline deadline = heap[index];
+		int half = size >>> 1;
+		while (index < half) {
+			int child = 2 * index + 1;
+			if (child + 1 < size && heap[child + 1].time < heap[child].time) {
+				child++;
+			}
+			if (deadline.time <= heap[child].time) {
+				break;
+			}
+			place(heap[child], index);
+			index = child;
+		}
+		place(deadline, index);
+	}
+
+	private void place(Deadline deadline, int index) {
+		heap[index] = deadline;
+		deadline.index = index;
+	}
+
+	private static final class Deadline {
+		private final UUID playerId;
+		private long time;
+		private int index = NOT_QUEUED; // Slot in the heap, or NOT_QUEUED while the player has no deadline
+
+		private Deadline(UUID playerId) {
+			this.playerId = playerId;
+		}
+	}
+}
@@ -0,0 +1,105 @@
+package net.nadar.timedrankup;
+
+// The rank decision for a single player, free of Minecraft and LuckPerms types so it can be exercised and
+// benchmarked without a server. TimedRankup resolves the player's membership and playtime and acts on the result.
+public final class RankEvaluator {
+
+	public static final long NO_RECHECK = -1; // Only a rank, group or config change can make a difference
+
+	private RankEvaluator() {
+	}
+
+	// Ladder position the player is treated as holding: their ladder group, or the first rank once they qualify for
+	// it if they are in none. -1 if neither applies.
+	public static int currentRankIndex(RankLadder ladder, int membershipRankIndex, long playtime) {
+		if (membershipRankIndex != -1) {
+			return membershipRankIndex;
+		}
+		// Players outside the ladder start from its first rank once they qualify for it
+		return ladder.size() > 0 && playtime >= ladder.threshold(0) ? 0 : -1;
+	}
+
+	// Rank the player should be promoted to now, or -1 if there is none
+	public static int promotionTarget(RankLadder ladder, int currentRankIndex, long playtime) {
+		if (currentRankIndex == -1 || currentRankIndex == ladder.maxIndex()) {
+			return -1;
+		}
+		// Find the highest rank the playtime qualifies for above the current one
+		return ladder.promotionTarget(currentRankIndex, playtime);
+	}
+
+	// Ladder position the player is treated as holding when ranks may also ask for recent playtime or have requirements.
+	// groups has the bits of the non-ladder groups the ladder's requirements name that the player is in.
+	public static int currentRankIndex(RankLadder ladder, int membershipRankIndex, long groups, long playtime, PlayerInputs inputs) {
+		int index = currentRankIndex(ladder, membershipRankIndex, playtime);
+		return index == 0 && membershipRankIndex == -1 && !meetsConditions(ladder, 0, -1, groups, playtime, inputs) ? -1 : index;
+	}
+
+	// Highest rank above the current one whose thresholds and requirement the player meets, or -1. A rank whose
+	// conditions are not met is passed over for the one below it.
+	public static int promotionTarget(RankLadder ladder, int currentRankIndex, long groups, long playtime, PlayerInputs inputs) {
+		if (!ladder.hasConditions()) {
+			return promotionTarget(ladder, currentRankIndex, playtime);
+		}
+		if (currentRankIndex == -1 || currentRankIndex == ladder.maxIndex()) {
+			return -1;
+		}
+		for (int index = ladder.highestReachedIndex(playtime); index > currentRankIndex; index--) {
+			if (meetsConditions(ladder, index, currentRankIndex, groups, playtime, inputs)) {
+				return index;
+			}
+		}
+		return -1;
+	}
+
+	// Seconds until the player could first meet the conditions of any rank above the current one, or NO_RECHECK if
+	// playtime alone cannot get them there. Recent playtime grows at most as fast as the clock, so this never
+	// overshoots; it may come early when days drop out of a window, in which case the check simply reschedules.
+	// Ranks that wait for a statistic or a group are left to whoever reports those changing.
+	public static long nextCheckDelay(RankLadder ladder, int currentRankIndex, long groups, long playtime, PlayerInputs inputs) {
+		if (!ladder.hasConditions()) {
+			return nextCheckDelay(ladder, currentRankIndex, playtime);
+		}
+		if (currentRankIndex != -1 && currentRankIndex == ladder.maxIndex()) {
+			return NO_RECHECK;
+		}
+		long delay = Long.MAX_VALUE;
+		for (int index = currentRankIndex + 1; index <= ladder.maxIndex(); index++) {
+			long gap = ladder.threshold(index) - playtime;
+			if (ladder.recentThreshold(index) > 0) {
+				gap = Math.max(gap, ladder.recentThreshold(index) - inputs.recentSeconds(ladder.windowDays(index)));
+			}
+			RankRequirement requirement = ladder.requirement(index);
+			if (requirement != null) {
+				gap = Math.max(gap, requirement.playtimeNeeded(playtime, currentRankIndex, groups, inputs));
+			}
+			delay = Math.min(delay, gap);
+		}
+		return delay != Long.MAX_VALUE ? Math.max(delay, 1) : NO_RECHECK;
+	}
+
+	// Everything but the lifetime threshold, which the callers have checked already
+	private static boolean meetsConditions(RankLadder ladder, int index, int currentRankIndex, long groups, long playtime, PlayerInputs inputs) {
+		if (ladder.recentThreshold(index) > 0 && inputs.recentSeconds(ladder.windowDays(index)) < ladder.recentThreshold(index)) {
+			return false;
+		}
+		RankRequirement requirement = ladder.requirement(index);
+		return requirement == null || requirement.test(playtime, currentRankIndex, groups, inputs);
+	}
+
+	// Seconds until the player's next threshold is reached, or NO_RECHECK if they are at the top of the ladder
+	public static long nextCheckDelay(RankLadder ladder, int currentRankIndex, long playtime) {
+		if (currentRankIndex != -1 && currentRankIndex == ladder.maxIndex()) {
+			return NO_RECHECK;
+		}
+		long nextThreshold = ladder.nextThreshold(Math.max(currentRankIndex, 0));
+		return nextThreshold != -1 ? Math.max(nextThreshold - playtime, 1) : NO_RECHECK;
+	}
+
+	// What the conditions of a rank may ask about the evaluated player, only when a rank has such a condition
+	public interface PlayerInputs {
+		long recentSeconds(int windowDays);
+
+		long stat(int slot); // Value of the ladder's statistic in the slot, or -1 if it is not known
+	}
+}
@@ -0,0 +1,241 @@
+package net.nadar.timedrankup;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+// Immutable, precompiled view of the configured ranks ordered by playtime threshold. It is rebuilt whenever the
+// rank configuration changes, so per-player evaluation never rescans the config list. Rank requirements are
+// compiled here too: every statistic and group they name gets a slot, numbered in the order they first appear.
+public final class RankLadder {
+
+	public static final RankLadder EMPTY = new RankLadder(new String[0], new long[0], new long[0], new int[0], new RankRequirement[0]);
+
+	private final String[] names;
+	private final long[] thresholds;
+	private final long[] recentThresholds; // Seconds to play within the rank's window, 0 if it has none
+	private final int[] windowDays;
+	private final RankRequirement[] requirements; // Compiled; null for ranks without one
+	private final boolean hasConditions;
+	private final Map<String, Integer> indexByName;
+	private final List<String> statTypes = new ArrayList<>(); // By statistic slot
+	private final List<String> statKeys = new ArrayList<>();
+	private final Map<String, Integer> statSlots = new HashMap<>();
+	private final Map<String, Integer> groupBits = new HashMap<>(); // Folded names of the non-ladder groups requirements name
+	private final long[] statsAbove; // Statistics the ranks above each position depend on, indexed by position + 1
+
+	private RankLadder(String[] names, long[] thresholds, long[] recentThresholds, int[] windowDays, RankRequirement[] requirements) {
+		this.names = names;
+		this.thresholds = thresholds;
+		this.recentThresholds = recentThresholds;
+		this.windowDays = windowDays;
+		this.indexByName = new HashMap<>(names.length * 2);
+		for (int i = 0; i < names.length; i++) {
+			indexByName.putIfAbsent(foldCase(names[i]), i);
+		}
+		boolean conditions = false;
+		for (long recentThreshold : recentThresholds) {
+			conditions |= recentThreshold > 0;
+		}
+		this.requirements = new RankRequirement[names.length];
+		RankRequirement.Resolver resolver = new RankRequirement.Resolver() {
+			@Override
+			public int rankIndex(String name) {
+				return indexOf(name);
+			}
+
+			@Override
+			public int statSlot(String type, String key) {
+				return slot(statSlots, type + ' ' + key, () -> {
+					statTypes.add(type);
+					statKeys.add(key);
+				});
+			}
+
+			@Override
+			public int groupBit(String name) {
+				return slot(groupBits, foldCase(name), () -> {
+				});
+			}
+		};
+		for (int i = 0; i < names.length; i++) {
+			if (requirements[i] != null) {
+				this.requirements[i] = requirements[i].compile(resolver);
+				conditions = true;
+			}
+		}
+		this.hasConditions = conditions;
+		this.statsAbove = new long[names.length + 1];
+		for (int i = names.length - 1; i >= 0; i--) {
+			statsAbove[i] = statsAbove[i + 1] | (this.requirements[i] != null ? this.requirements[i].statMask() : 0);
+		}
+	}
+
+	private static int slot(Map<String, Integer> slots, String key, Runnable added) {
+		Integer slot = slots.get(key);
+		if (slot == null) {
+			if (slots.size() == RankRequirement.MAX_SLOTS) {
+				throw new IllegalArgumentException("Rank requirements may name at most " + RankRequirement.MAX_SLOTS + " statistics and " + RankRequirement.MAX_SLOTS + " groups");
+			}
+			slot = slots.size();
+			slots.put(key, slot);
+			added.run();
+		}
+		return slot;
+	}
+
+	public static RankLadder compile(String[] names, long[] thresholds) {
+		return compile(names, thresholds, new long[names.length], new int[names.length]);
+	}
+
+	// Sorts the ranks by threshold; ranks sharing a threshold keep their configured order. A rank with a recent
+	// threshold also asks for that much playtime within its last windowDays days.
+	public static RankLadder compile(String[] names, long[] thresholds, long[] recentThresholds, int[] windowDays) {
+		return compile(names, thresholds, recentThresholds, windowDays, new RankRequirement[names.length]);
+	}
+
+	// Requirements are compiled against the sorted ladder; throws IllegalArgumentException if they name too many
+	// statistics or groups
+	public static RankLadder compile(String[] names, long[] thresholds, long[] recentThresholds, int[] windowDays, RankRequirement[] requirements) {
+		if (names.length != thresholds.length || names.length != recentThresholds.length || names.length != windowDays.length
+				|| names.length != requirements.length) {
+			throw new IllegalArgumentException("Every rank needs exactly one threshold");
+		}
+		Integer[] order = new Integer[names.length];
+		for (int i = 0; i < order.length; i++) {
+			order[i] = i;
+		}
+		Arrays.sort(order, Comparator.comparingLong(i -> thresholds[i]));
+
+		String[] sortedNames = new String[names.length];
+		long[] sortedThresholds = new long[names.length];
+		long[] sortedRecentThresholds = new long[names.length];
+		int[] sortedWindowDays = new int[names.length];
+		RankRequirement[] sortedRequirements = new RankRequirement[names.length];
+		for (int i = 0; i < order.length; i++) {
+			sortedNames[i] = names[order[i]];
+			sortedThresholds[i] = thresholds[order[i]];
+			sortedRecentThresholds[i] = recentThresholds[order[i]];
+			sortedWindowDays[i] = windowDays[order[i]];
+			sortedRequirements[i] = requirements[order[i]];
+		}
+		return new RankLadder(sortedNames, sortedThresholds, sortedRecentThresholds, sortedWindowDays, sortedRequirements);
+	}
+
+	public static String foldCase(String name) {
+		return name.toLowerCase(Locale.ROOT);
+	}
+
+	public int size() {
+		return names.length;
+	}
+
+	public String name(int index) {
+		return names[index];
+	}
+
+	public long threshold(int index) {
+		return thresholds[index];
+	}
+
+	public long recentThreshold(int index) {
+		return recentThresholds[index];
+	}
+
+	public int windowDays(int index) {
+		return windowDays[index];
+	}
+
+	// Null if the rank has no requirement
+	public RankRequirement requirement(int index) {
+		return requirements[index];
+	}
+
+	// False for ladders that only look at lifetime playtime, which keeps their evaluation to a binary search
+	public boolean hasConditions() {
+		return hasConditions;
+	}
+
+	public int statCount() {
+		return statTypes.size();
+	}
+
+	// Statistic type and key of a slot, e.g. "minecraft:mined" and "minecraft:stone"
+	public String statType(int slot) {
+		return statTypes.get(slot);
+	}
+
+	public String statKey(int slot) {
+		return statKeys.get(slot);
+	}
+
+	// Bit of a non-ladder group requirements name, or -1
+	public int groupBit(String name) {
+		Integer bit = groupBits.get(foldCase(name));
+		return bit != null ? bit : -1;
+	}
+
+	// Statistics the requirements of the ranks above the position read; every rank's for -1
+	public long statsAbove(int currentIndex) {
+		return statsAbove[currentIndex + 1];
+	}
+
+	// Lowest value of the statistic above the given one at which a rank above the position could change its mind, or
+	// RankRequirement.NEVER
+	public long statTarget(int currentIndex, int slot, long value) {
+		long target = RankRequirement.NEVER;
+		if ((statsAbove(currentIndex) & (1L << slot)) == 0) {
+			return target;
+		}
+		for (int index = currentIndex + 1; index < requirements.length; index++) {
+			if (requirements[index] != null) {
+				target = Math.min(target, requirements[index].statTarget(slot, value));
+			}
+		}
+		return target;
+	}
+
+	// Ladder position of the rank with this name ignoring case, or -1 if it is not a ladder rank
+	public int indexOf(String name) {
+		Integer index = indexByName.get(foldCase(name));
+		return index != null ? index : -1;
+	}
+
+	public int maxIndex() {
+		return names.length - 1;
+	}
+
+	public String maxRank() {
+		return names.length > 0 ? names[names.length - 1] : null;
+	}
+
+	// Highest rank whose threshold the playtime meets, or -1 if it meets none
+	public int highestReachedIndex(long playtime) {
+		int low = 0;
+		int high = thresholds.length - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			if (thresholds[mid] <= playtime) {
+				low = mid + 1;
+			} else {
+				high = mid - 1;
+			}
+		}
+		return high;
+	}
+
+	// Rank a player at currentIndex should be promoted to for this playtime, or -1 if they should stay put
+	public int promotionTarget(int currentIndex, long playtime) {
+		int target = highestReachedIndex(playtime);
+		return target > currentIndex ? target : -1;
+	}
+
+	// Threshold of the first rank above currentIndex, or -1 if the player is already at the top
+	public long nextThreshold(int currentIndex) {
+		return currentIndex + 1 < thresholds.length ? thresholds[currentIndex + 1] : -1;
+	}
+}
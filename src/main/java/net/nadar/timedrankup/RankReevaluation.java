@@ -0,0 +1,315 @@
+package net.nadar.timedrankup;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+
+// Checks every known player against the ladder once, e.g. after a threshold was added or lowered, and promotes the
+// offline players who qualify now. The players are split into chunks checked in parallel on a pool of its own, and
+// each check reads the player's groups through the backend, which may load them from its storage. Promotions go to a
+// single writer that hands them to the backend in batches at a bounded rate, so a mass promotion does not flood the
+// permission storage. Online players are left to the engine, which checks them itself. Nothing here runs on the
+// server thread, and cancelling stops both the checks and the writes; promotions already written stay.
+public class RankReevaluation {
+
+	private static final Logger LOGGER = LogManager.getLogger();
+	private static final int PLAYERS_PER_TASK = 256;
+	private static final long GROUP_LOAD_TIMEOUT_SECONDS = 30;
+	private static final long POLL_MILLIS = 100;
+	private static final long PROGRESS_INTERVAL_NANOS = 1_000_000_000L;
+
+	private final PermissionBackend backend;
+	private final Metrics metrics;
+	private final RankupConfig config;
+	private final PlaytimeTable.Snapshot players;
+	private final Predicate<UUID> online; // Must be safe to call from any thread
+	private final PlaytimeHistory history;
+	private final int parallelism;
+	private final int promotionsPerSecond;
+	private final ProgressListener progress;
+	private final BlockingQueue<Promotion> promotions; // Bounded, so the checks never run far ahead of the writer
+	private final CompletableFuture<Result> result = new CompletableFuture<>();
+	private final AtomicBoolean cancelled = new AtomicBoolean();
+	private final AtomicInteger checked = new AtomicInteger();
+	private final AtomicInteger onlineSkipped = new AtomicInteger();
+	private final AtomicInteger excluded = new AtomicInteger();
+	private final AtomicInteger unknown = new AtomicInteger(); // The backend had nothing on them, or did not answer
+	private final AtomicInteger promoted = new AtomicInteger();
+	private final AtomicInteger failed = new AtomicInteger();
+	private final AtomicLong lastProgress = new AtomicLong(System.nanoTime());
+	private final Thread writer;
+	private volatile boolean checksDone;
+	private volatile Throwable checkError;
+
+	public RankReevaluation(PermissionBackend backend, Metrics metrics, RankupConfig config, PlaytimeTable.Snapshot players,
+							Predicate<UUID> online, PlaytimeHistory history, int parallelism, int promotionsPerSecond, ProgressListener progress) {
+		this.backend = backend;
+		this.metrics = metrics;
+		this.config = config;
+		this.players = players;
+		this.online = online;
+		this.history = history;
+		this.parallelism = Math.max(parallelism, 1);
+		this.promotionsPerSecond = Math.max(promotionsPerSecond, 1);
+		this.progress = progress;
+		this.promotions = new ArrayBlockingQueue<>(this.promotionsPerSecond * 2);
+		this.writer = new Thread(this::writePromotions, "TimedRankup-BulkPromotions");
+		writer.setDaemon(true);
+	}
+
+	// Starts the checks and the writer; completes once every promotion has been written, or once cancelled
+	public CompletableFuture<Result> start() {
+		writer.start();
+		ForkJoinPool pool = new ForkJoinPool(parallelism);
+		CompletableFuture.runAsync(() -> new CheckTask(0, players.size()).invoke(), pool).whenComplete((ignored, error) -> {
+			pool.shutdown();
+			checkError = error;
+			checksDone = true;
+		});
+		return result;
+	}
+
+	public void cancel() {
+		if (cancelled.compareAndSet(false, true)) {
+			writer.interrupt();
+		}
+	}
+
+	public boolean isDone() {
+		return result.isDone();
+	}
+
+	private void check(int index) {
+		long playtime = players.playtime(index);
+		RankLadder ladder = config.ladder();
+		// Promotion needs a target above the rank held, and a player counts as holding the first rank at best once
+		// they qualify for it, so below the second threshold nobody has to be looked up at all
+		if (ladder.highestReachedIndex(playtime) < 1) {
+			return;
+		}
+		UUID playerId = new UUID(players.mostSigBits(index), players.leastSigBits(index));
+		if (online.test(playerId)) {
+			onlineSkipped.incrementAndGet();
+			return;
+		}
+		List<String> groupNames = loadGroups(playerId);
+		if (groupNames == null) {
+			unknown.incrementAndGet();
+			return;
+		}
+		GroupMembershipCache.Membership membership = GroupMembershipCache.Membership.resolve(groupNames, ladder, config.excludedGroups());
+		if (membership.excluded) {
+			excluded.incrementAndGet();
+			return;
+		}
+		// Offline, so everything they played recently is in the history already; their statistics are not known
+		RankEvaluator.PlayerInputs inputs = new OfflineInputs(playerId);
+		int currentRankIndex = RankEvaluator.currentRankIndex(ladder, membership.rankIndex, membership.groups, playtime, inputs);
+		int targetRankIndex = RankEvaluator.promotionTarget(ladder, currentRankIndex, membership.groups, playtime, inputs);
+		if (targetRankIndex != -1) {
+			enqueue(new Promotion(playerId, ladder.name(targetRankIndex)));
+		}
+	}
+
+	// Blocks the pool thread; the pool is ours and its size bounds how many players are loaded at once
+	private List<String> loadGroups(UUID playerId) {
+		long start = System.nanoTime();
+		try {
+			return backend.loadInheritedGroups(playerId).get(GROUP_LOAD_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+		} catch (ExecutionException | TimeoutException | RuntimeException e) {
+			LOGGER.error("Error loading the groups of player {}: {}", playerId, e.getMessage());
+			return null;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return null;
+		} finally {
+			metrics.luckPermsLookup.recordSince(start);
+		}
+	}
+
+	private void enqueue(Promotion promotion) {
+		try {
+			while (!cancelled.get()) {
+				if (promotions.offer(promotion, POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+					return;
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	// Runs on the writer thread until the checks are done and everything they found is written
+	private void writePromotions() {
+		List<Promotion> batch = new ArrayList<>();
+		try {
+			while (!cancelled.get()) {
+				Promotion next = promotions.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+				if (next == null) {
+					// Read before the queue: once the checks are done, nothing is added any more
+					if (checksDone && promotions.isEmpty()) {
+						break;
+					}
+					continue;
+				}
+				batch.add(next);
+				promotions.drainTo(batch, promotionsPerSecond - 1);
+				long start = System.nanoTime();
+				writeBatch(batch);
+				// Whatever the batch size, the writes average out at promotionsPerSecond
+				long pause = batch.size() * 1_000_000_000L / promotionsPerSecond - (System.nanoTime() - start);
+				batch.clear();
+				if (pause > 0) {
+					TimeUnit.NANOSECONDS.sleep(pause);
+				}
+			}
+		} catch (InterruptedException e) {
+			// Cancelled
+		}
+		promotions.clear();
+		if (checkError != null && !cancelled.get()) {
+			result.completeExceptionally(checkError);
+		} else {
+			result.complete(new Result(players.size(), checked.get(), onlineSkipped.get(), excluded.get(), unknown.get(), promoted.get(), failed.get(), cancelled.get()));
+		}
+	}
+
+	// Submits the batch and waits for all of it, so no more than one batch is ever in flight
+	private void writeBatch(List<Promotion> batch) throws InterruptedException {
+		List<CompletableFuture<Void>> writes = new ArrayList<>(batch.size());
+		for (Promotion promotion : batch) {
+			// Joined since they were checked; the engine promotes them from their live playtime instead
+			if (online.test(promotion.playerId)) {
+				onlineSkipped.incrementAndGet();
+				continue;
+			}
+			long start = System.nanoTime();
+			CompletableFuture<Void> write;
+			try {
+				write = backend.setParentGroup(promotion.playerId, promotion.rankName);
+			} catch (RuntimeException e) {
+				write = CompletableFuture.failedFuture(e);
+			}
+			writes.add(write.whenComplete((ignored, error) -> {
+				metrics.promotionWrite.recordSince(start);
+				if (error == null) {
+					metrics.promotionsSucceeded.increment();
+					promoted.incrementAndGet();
+					LOGGER.info("Player {} has been granted the rank: {}", promotion.playerId, promotion.rankName);
+				} else {
+					metrics.promotionsFailed.increment();
+					failed.incrementAndGet();
+					LOGGER.error("Error granting rank {} to player {}: {}", promotion.rankName, promotion.playerId, error.getMessage());
+				}
+			}));
+		}
+		try {
+			CompletableFuture.allOf(writes.toArray(new CompletableFuture[0])).get();
+		} catch (ExecutionException e) {
+			// Counted and logged per promotion above
+		}
+	}
+
+	// Reports at most once per interval, from whichever thread gets there first
+	private void playerChecked() {
+		int count = checked.incrementAndGet();
+		long now = System.nanoTime();
+		long last = lastProgress.get();
+		if (now - last >= PROGRESS_INTERVAL_NANOS && lastProgress.compareAndSet(last, now)) {
+			progress.onProgress(count, players.size(), promoted.get());
+		}
+	}
+
+	private final class CheckTask extends RecursiveAction {
+		private final int from;
+		private final int to;
+
+		private CheckTask(int from, int to) {
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from <= PLAYERS_PER_TASK) {
+				for (int i = from; i < to && !cancelled.get(); i++) {
+					check(i);
+					playerChecked();
+				}
+				return;
+			}
+			int middle = (from + to) >>> 1;
+			invokeAll(new CheckTask(from, middle), new CheckTask(middle, to));
+		}
+	}
+
+	private final class OfflineInputs implements RankEvaluator.PlayerInputs {
+		private final UUID playerId;
+
+		private OfflineInputs(UUID playerId) {
+			this.playerId = playerId;
+		}
+
+		@Override
+		public long recentSeconds(int windowDays) {
+			return history.windowSum(playerId, windowDays);
+		}
+
+		@Override
+		public long stat(int slot) {
+			return -1;
+		}
+	}
+
+	private static final class Promotion {
+		private final UUID playerId;
+		private final String rankName;
+
+		private Promotion(UUID playerId, String rankName) {
+			this.playerId = playerId;
+			this.rankName = rankName;
+		}
+	}
+
+	// Called from the job's threads
+	public interface ProgressListener {
+		void onProgress(int playersChecked, int totalPlayers, int promoted);
+	}
+
+	public static final class Result {
+		public final int players; // Known players when the job started
+		public final int checked;
+		public final int online; // Left to the engine
+		public final int excluded;
+		public final int unknown;
+		public final int promoted;
+		public final int failed;
+		public final boolean cancelled;
+
+		private Result(int players, int checked, int online, int excluded, int unknown, int promoted, int failed, boolean cancelled) {
+			this.players = players;
+			this.checked = checked;
+			this.online = online;
+			this.excluded = excluded;
+			this.unknown = unknown;
+			this.promoted = promoted;
+			this.failed = failed;
+			this.cancelled = cancelled;
+		}
+	}
+}
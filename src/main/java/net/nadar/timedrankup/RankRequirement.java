@@ -0,0 +1,344 @@
+package net.nadar.timedrankup;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// A rank's extra requirement from the "requires" entry of timedrankup_ranks.json: an AND/OR expression over playtime,
+// vanilla statistics and groups, on top of the rank's thresholds.
+//
+//   {"all": [...]} / {"any": [...]}                          every / at least one of the nested requirements
+//   {"playtime": 36000}                                     at least this many seconds of playtime
+//   {"stat": "minecraft:mined", "key": "minecraft:stone", "atLeast": 1000}
+//   {"rank": "Regular"}                                     holds this ladder rank or a higher one, or is in this group
+//
+// Parsed into a tree of names, which the ladder compiles once per config change: statistics and groups become slots
+// of its tables, so testing a player is a walk over the tree with array reads and no lookups or allocation. Every
+// node knows which statistics it depends on and the next value of each that could change its outcome, so a player
+// is only re-checked once a statistic reaches such a value.
+public abstract class RankRequirement {
+
+	public static final long NEVER = Long.MAX_VALUE; // More playtime alone can never satisfy the requirement
+	public static final int MAX_SLOTS = 64; // Statistics, and groups, a ladder's requirements may refer to
+
+	private RankRequirement() {
+	}
+
+	// Only called on compiled requirements
+	public abstract boolean test(long playtime, int currentRankIndex, long groups, RankEvaluator.PlayerInputs inputs);
+
+	// Seconds of playtime after which the requirement holds if nothing else changes: 0 if it holds now, NEVER if
+	// playtime alone cannot make it hold
+	public abstract long playtimeNeeded(long playtime, int currentRankIndex, long groups, RankEvaluator.PlayerInputs inputs);
+
+	// Bit per statistic slot the requirement reads
+	public abstract long statMask();
+
+	// Lowest value above the given one at which the statistic in the slot could change the outcome, or NEVER.
+	// Statistics only grow, so nothing below it needs another check.
+	public abstract long statTarget(int slot, long value);
+
+	// Resolves names against the ladder; throws IllegalArgumentException for names that cannot be resolved
+	abstract RankRequirement compile(Resolver resolver);
+
+	public abstract JsonElement toJson();
+
+	@Override
+	public boolean equals(Object o) {
+		return o instanceof RankRequirement && toString().equals(o.toString());
+	}
+
+	@Override
+	public int hashCode() {
+		return toString().hashCode();
+	}
+
+	// Throws JsonParseException if the element is not a requirement
+	public static RankRequirement parse(JsonElement element) {
+		if (element.isJsonArray()) {
+			return new Combination(true, parseAll(element.getAsJsonArray()));
+		}
+		if (!element.isJsonObject()) {
+			throw new JsonParseException("A requirement must be an object: " + element);
+		}
+		JsonObject object = element.getAsJsonObject();
+		try {
+			if (object.has("all")) {
+				return new Combination(true, parseAll(object.getAsJsonArray("all")));
+			}
+			if (object.has("any")) {
+				return new Combination(false, parseAll(object.getAsJsonArray("any")));
+			}
+			if (object.has("playtime")) {
+				return new Playtime(object.get("playtime").getAsLong());
+			}
+			if (object.has("stat")) {
+				if (!object.has("key") || !object.has("atLeast")) {
+					throw new JsonParseException("A stat requirement needs a key and atLeast: " + element);
+				}
+				return new Statistic(object.get("stat").getAsString(), object.get("key").getAsString(), object.get("atLeast").getAsLong(), -1);
+			}
+			if (object.has("rank")) {
+				return new Group(object.get("rank").getAsString(), -1, -1);
+			}
+		} catch (ClassCastException | IllegalStateException | UnsupportedOperationException | NumberFormatException e) {
+			throw new JsonParseException("Malformed requirement: " + element);
+		}
+		throw new JsonParseException("Unknown requirement: " + element);
+	}
+
+	private static RankRequirement[] parseAll(JsonArray array) {
+		if (array == null || array.size() == 0) {
+			throw new JsonParseException("all and any need at least one requirement");
+		}
+		List<RankRequirement> children = new ArrayList<>(array.size());
+		for (JsonElement child : array) {
+			children.add(parse(child));
+		}
+		return children.toArray(new RankRequirement[0]);
+	}
+
+	// What the ladder resolves names to while compiling
+	interface Resolver {
+		int rankIndex(String name); // -1 if the name is not a ladder rank
+
+		int statSlot(String type, String key);
+
+		int groupBit(String name);
+	}
+
+	private static final class Combination extends RankRequirement {
+		private final boolean all;
+		private final RankRequirement[] children;
+		private final long statMask;
+
+		private Combination(boolean all, RankRequirement[] children) {
+			this.all = all;
+			this.children = children;
+			long mask = 0;
+			for (RankRequirement child : children) {
+				mask |= child.statMask();
+			}
+			this.statMask = mask;
+		}
+
+		@Override
+		public boolean test(long playtime, int currentRankIndex, long groups, RankEvaluator.PlayerInputs inputs) {
+			for (RankRequirement child : children) {
+				if (child.test(playtime, currentRankIndex, groups, inputs) != all) {
+					return !all;
+				}
+			}
+			return all;
+		}
+
+		// The slowest child for all, the quickest for any
+		@Override
+		public long playtimeNeeded(long playtime, int currentRankIndex, long groups, RankEvaluator.PlayerInputs inputs) {
+			long needed = all ? 0 : NEVER;
+			for (RankRequirement child : children) {
+				long childNeeded = child.playtimeNeeded(playtime, currentRankIndex, groups, inputs);
+				needed = all ? Math.max(needed, childNeeded) : Math.min(needed, childNeeded);
+			}
+			return needed;
+		}
+
+		@Override
+		public long statMask() {
+			return statMask;
+		}
+
+		@Override
+		public long statTarget(int slot, long value) {
+			long target = NEVER;
+			for (RankRequirement child : children) {
+				target = Math.min(target, child.statTarget(slot, value));
+			}
+			return target;
+		}
+
+		@Override
+		RankRequirement compile(Resolver resolver) {
+			RankRequirement[] compiled = new RankRequirement[children.length];
+			for (int i = 0; i < children.length; i++) {
+				compiled[i] = children[i].compile(resolver);
+			}
+			return new Combination(all, compiled);
+		}
+
+		@Override
+		public JsonElement toJson() {
+			JsonArray array = new JsonArray();
+			for (RankRequirement child : children) {
+				array.add(child.toJson());
+			}
+			JsonObject object = new JsonObject();
+			object.add(all ? "all" : "any", array);
+			return object;
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder builder = new StringBuilder("(");
+			for (int i = 0; i < children.length; i++) {
+				builder.append(i == 0 ? "" : all ? " and " : " or ").append(children[i]);
+			}
+			return builder.append(')').toString();
+		}
+	}
+
+	private static final class Playtime extends RankRequirement {
+		private final long seconds;
+
+		private Playtime(long seconds) {
+			this.seconds = seconds;
+		}
+
+		@Override
+		public boolean test(long playtime, int currentRankIndex, long groups, RankEvaluator.PlayerInputs inputs) {
+			return playtime >= seconds;
+		}
+
+		@Override
+		public long playtimeNeeded(long playtime, int currentRankIndex, long groups, RankEvaluator.PlayerInputs inputs) {
+			return Math.max(seconds - playtime, 0);
+		}
+
+		@Override
+		public long statMask() {
+			return 0;
+		}
+
+		@Override
+		public long statTarget(int slot, long value) {
+			return NEVER;
+		}
+
+		@Override
+		RankRequirement compile(Resolver resolver) {
+			return this;
+		}
+
+		@Override
+		public JsonElement toJson() {
+			JsonObject object = new JsonObject();
+			object.addProperty("playtime", seconds);
+			return object;
+		}
+
+		@Override
+		public String toString() {
+			return "playtime >= " + seconds + "s";
+		}
+	}
+
+	private static final class Statistic extends RankRequirement {
+		private final String type;
+		private final String key;
+		private final long atLeast;
+		private final int slot;
+
+		private Statistic(String type, String key, long atLeast, int slot) {
+			this.type = type;
+			this.key = key;
+			this.atLeast = atLeast;
+			this.slot = slot;
+		}
+
+		// A statistic that is not known, e.g. for an offline player, never satisfies the requirement
+		@Override
+		public boolean test(long playtime, int currentRankIndex, long groups, RankEvaluator.PlayerInputs inputs) {
+			return inputs.stat(slot) >= atLeast;
+		}
+
+		@Override
+		public long playtimeNeeded(long playtime, int currentRankIndex, long groups, RankEvaluator.PlayerInputs inputs) {
+			return test(playtime, currentRankIndex, groups, inputs) ? 0 : NEVER;
+		}
+
+		@Override
+		public long statMask() {
+			return slot >= 0 ? 1L << slot : 0;
+		}
+
+		@Override
+		public long statTarget(int slot, long value) {
+			return slot == this.slot && atLeast > value ? atLeast : NEVER;
+		}
+
+		@Override
+		RankRequirement compile(Resolver resolver) {
+			return new Statistic(type, key, atLeast, resolver.statSlot(type, key));
+		}
+
+		@Override
+		public JsonElement toJson() {
+			JsonObject object = new JsonObject();
+			object.addProperty("stat", type);
+			object.addProperty("key", key);
+			object.addProperty("atLeast", atLeast);
+			return object;
+		}
+
+		@Override
+		public String toString() {
+			return type + "/" + key + " >= " + atLeast;
+		}
+	}
+
+	// A ladder rank is held by holding it or any rank above it; any other group by inheriting it
+	private static final class Group extends RankRequirement {
+		private final String name;
+		private final int rankIndex;
+		private final int bit;
+
+		private Group(String name, int rankIndex, int bit) {
+			this.name = name;
+			this.rankIndex = rankIndex;
+			this.bit = bit;
+		}
+
+		@Override
+		public boolean test(long playtime, int currentRankIndex, long groups, RankEvaluator.PlayerInputs inputs) {
+			return rankIndex >= 0 ? currentRankIndex >= rankIndex : (groups & (1L << bit)) != 0;
+		}
+
+		// Groups only change through promotions and permission changes, which schedule a check of their own
+		@Override
+		public long playtimeNeeded(long playtime, int currentRankIndex, long groups, RankEvaluator.PlayerInputs inputs) {
+			return test(playtime, currentRankIndex, groups, inputs) ? 0 : NEVER;
+		}
+
+		@Override
+		public long statMask() {
+			return 0;
+		}
+
+		@Override
+		public long statTarget(int slot, long value) {
+			return NEVER;
+		}
+
+		@Override
+		RankRequirement compile(Resolver resolver) {
+			int index = resolver.rankIndex(name);
+			return new Group(name, index, index >= 0 ? -1 : resolver.groupBit(name));
+		}
+
+		@Override
+		public JsonElement toJson() {
+			JsonObject object = new JsonObject();
+			object.addProperty("rank", name);
+			return object;
+		}
+
+		@Override
+		public String toString() {
+			return "rank " + name;
+		}
+	}
+}
@@ -0,0 +1,145 @@
+package net.nadar.timedrankup;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+
+// Immutable snapshot of the rank and exclusion configuration together with the ladder compiled from it. The engine
+// publishes it through a single volatile reference and every change replaces the whole snapshot, so a rank check
+// always sees a ladder and exclusions that belong together.
+public final class RankupConfig {
+
+	public static final RankupConfig EMPTY = new RankupConfig(List.of(), List.of());
+
+	private final List<Rank> ranks; // In configured order
+	private final List<String> excludedGroupNames; // As configured
+	private final RankLadder ladder;
+	private final Set<String> excludedGroups; // Case-folded
+
+	public RankupConfig(List<Rank> ranks, List<String> excludedGroupNames) {
+		this.ranks = List.copyOf(ranks);
+		this.excludedGroupNames = List.copyOf(excludedGroupNames);
+		String[] names = new String[this.ranks.size()];
+		long[] thresholds = new long[this.ranks.size()];
+		long[] recentThresholds = new long[this.ranks.size()];
+		int[] windowDays = new int[this.ranks.size()];
+		RankRequirement[] requirements = new RankRequirement[this.ranks.size()];
+		for (int i = 0; i < names.length; i++) {
+			Rank rank = this.ranks.get(i);
+			names[i] = rank.name;
+			thresholds[i] = rank.playtimeThreshold;
+			recentThresholds[i] = rank.recentPlaytimeThreshold;
+			windowDays[i] = rank.recentWindowDays;
+			requirements[i] = rank.requirement;
+		}
+		this.ladder = RankLadder.compile(names, thresholds, recentThresholds, windowDays, requirements);
+		Set<String> groups = new HashSet<>();
+		for (String group : this.excludedGroupNames) {
+			groups.add(RankLadder.foldCase(group));
+		}
+		this.excludedGroups = Set.copyOf(groups);
+	}
+
+	public List<Rank> ranks() {
+		return ranks;
+	}
+
+	public List<String> excludedGroupNames() {
+		return excludedGroupNames;
+	}
+
+	public RankLadder ladder() {
+		return ladder;
+	}
+
+	public Set<String> excludedGroups() {
+		return excludedGroups;
+	}
+
+	public RankupConfig withRanks(List<Rank> ranks) {
+		return new RankupConfig(ranks, excludedGroupNames);
+	}
+
+	// Equal when both were built from the same ranks and exclusions, e.g. when a file is reloaded unchanged
+	@Override
+	public boolean equals(Object other) {
+		if (this == other) {
+			return true;
+		}
+		if (!(other instanceof RankupConfig)) {
+			return false;
+		}
+		RankupConfig config = (RankupConfig) other;
+		return ranks.equals(config.ranks) && excludedGroupNames.equals(config.excludedGroupNames);
+	}
+
+	@Override
+	public int hashCode() {
+		return Objects.hash(ranks, excludedGroupNames);
+	}
+
+	public static final class Rank {
+		private final String name;
+		private final long playtimeThreshold; // Seconds
+		private final long recentPlaytimeThreshold; // Seconds within the window, 0 if the rank only looks at lifetime playtime
+		private final int recentWindowDays;
+		private final RankRequirement requirement; // Null if the rank has none
+
+		public Rank(String name, long playtimeThreshold) {
+			this(name, playtimeThreshold, 0, 0);
+		}
+
+		public Rank(String name, long playtimeThreshold, long recentPlaytimeThreshold, int recentWindowDays) {
+			this(name, playtimeThreshold, recentPlaytimeThreshold, recentWindowDays, null);
+		}
+
+		// The window is capped to what PlaytimeHistory keeps
+		public Rank(String name, long playtimeThreshold, long recentPlaytimeThreshold, int recentWindowDays, RankRequirement requirement) {
+			this.name = Objects.requireNonNull(name);
+			this.requirement = requirement;
+			this.playtimeThreshold = playtimeThreshold;
+			this.recentPlaytimeThreshold = Math.max(recentPlaytimeThreshold, 0);
+			this.recentWindowDays = this.recentPlaytimeThreshold > 0 ? Math.max(Math.min(recentWindowDays, PlaytimeHistory.MAX_WINDOW_DAYS), 1) : 0;
+		}
+
+		public String name() {
+			return name;
+		}
+
+		public long playtimeThreshold() {
+			return playtimeThreshold;
+		}
+
+		public long recentPlaytimeThreshold() {
+			return recentPlaytimeThreshold;
+		}
+
+		public int recentWindowDays() {
+			return recentWindowDays;
+		}
+
+		public RankRequirement requirement() {
+			return requirement;
+		}
+
+		@Override
+		public boolean equals(Object other) {
+			if (this == other) {
+				return true;
+			}
+			if (!(other instanceof Rank)) {
+				return false;
+			}
+			Rank rank = (Rank) other;
+			return name.equals(rank.name) && playtimeThreshold == rank.playtimeThreshold
+					&& recentPlaytimeThreshold == rank.recentPlaytimeThreshold && recentWindowDays == rank.recentWindowDays
+					&& Objects.equals(requirement, rank.requirement);
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(name, playtimeThreshold, recentPlaytimeThreshold, recentWindowDays, requirement);
+		}
+	}
+}
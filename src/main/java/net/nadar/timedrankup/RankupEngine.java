@@ -0,0 +1,531 @@
+package net.nadar.timedrankup;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
+import java.util.function.LongConsumer;
+import java.util.function.LongSupplier;
+
+// Playtime accounting, rank checks and promotions, free of Minecraft types. TimedRankup feeds it joins,
+// disconnects, ticks and config changes from the server; the load simulator feeds it the same from a virtual
+// clock. Everything except playtime reads is called on the server thread.
+//
+// Player records are tiered so the heap grows with concurrent players rather than all-time players: a joining
+// player's stored total is read from the storage off-thread, players who left stay in memory in a bounded LRU,
+// and the oldest of those are dropped once their playtime has been written. Only the leaderboard keeps a compact
+// entry for everyone, since ranking needs all of them.
+//
+// Rank requirements on vanilla statistics are fed in by TimedRankup through updateStat. A rank check works out, for
+// each statistic the ranks above the player depend on, the next value that could change its outcome, and only a
+// statistic reaching that value schedules another check.
+public class RankupEngine {
+
+	private static final Logger LOGGER = LogManager.getLogger();
+	private static final long RETRY_DELAY_SECONDS = 15; // Rank checks that could not be decided yet are retried after this
+	private static final long LOAD_FAILED = -1; // In place of a load number when reading a player's total failed
+	private final PlaytimeTable playerPlaytimes;
+	private final PlaytimePersistenceWorker persistenceWorker;
+	private final PlaytimeHistory history;
+	private final Metrics metrics;
+	private final LongSupplier nanoClock;
+	private final long saveIntervalSeconds;
+	private final int cachedPlayers; // How many players who left keep their record in memory
+	private final PlaytimeSessions playtimeSessions;
+	private final PromotionScheduler promotionScheduler = new PromotionScheduler();
+	private final PlaytimeLeaderboard leaderboard = new PlaytimeLeaderboard();
+	private final Map<UUID, Long> unsavedSeconds = new HashMap<>(); // Time from ended sessions not yet handed to the persistence worker
+	private final Map<UUID, Set<String>> playersAlreadyUpgraded = new HashMap<>();
+	private final Map<UUID, PlayerStats> playerStats = new HashMap<>(); // Online players' values of the ladder's statistics
+	// Players who left, longest ago first, with the save that writes the last of their playtime
+	private final Map<UUID, Long> departedPlayers = new LinkedHashMap<>();
+	private final Map<UUID, Long> loadingPlayers = new HashMap<>(); // Players whose stored total is being read, with the load's number
+	private long loadCount = 0;
+	private volatile RankupConfig config = RankupConfig.EMPTY; // Replaced as a whole, never modified
+	private PermissionBackend permissionBackend; // Set while the engine is started
+	private GroupMembershipCache membershipCache;
+	private PromotionPipeline promotionPipeline;
+	private PromotionPipeline.PromotionListener promotionListener;
+	private Executor serverExecutor; // Set while the engine is started
+	private RankReevaluation reevaluation; // The last bulk re-evaluation, possibly still running
+	private long lastSaveTime;
+	private long sweepTime; // Time of the sweep in progress, so the rank check callback needs no capture
+	private final Consumer<UUID> evaluateDuePlayer = playerId -> evaluatePlayer(playerId, sweepTime);
+	private final CheckedPlayer checkedPlayer = new CheckedPlayer(); // Reused for every rank check
+	// Published by the server thread on every tick for the gauges, which are read on other threads
+	private volatile long departedPlayerCount;
+	private volatile long scheduledRankChecks;
+	private volatile long promotionsInFlight;
+
+	public RankupEngine(PlaytimeTable playerPlaytimes, PlaytimePersistenceWorker persistenceWorker, PlaytimeHistory history, Metrics metrics,
+						LongSupplier nanoClock, long saveIntervalSeconds, int cachedPlayers) {
+		this.playerPlaytimes = playerPlaytimes;
+		this.persistenceWorker = persistenceWorker;
+		this.history = history;
+		this.metrics = metrics;
+		this.nanoClock = nanoClock;
+		this.saveIntervalSeconds = saveIntervalSeconds;
+		this.cachedPlayers = cachedPlayers;
+		this.playtimeSessions = new PlaytimeSessions(playerPlaytimes, history);
+		this.lastSaveTime = currentSeconds();
+		metrics.gauge("online_sessions", "Players with a running playtime session", playtimeSessions::size);
+		metrics.gauge("tracked_players", "Players whose playtime record is in memory", playerPlaytimes::size);
+		metrics.gauge("cached_offline_players", "Players who left and whose record is still in memory", () -> departedPlayerCount);
+		metrics.gauge("scheduled_rank_checks", "Online players waiting for their next rank check", () -> scheduledRankChecks);
+		metrics.gauge("promotions_in_flight", "Promotions submitted to the permission backend that have not completed", () -> promotionsInFlight);
+	}
+
+	// Connects the engine to the permission backend. Backend events and completed promotions are handed back to the
+	// server thread through serverExecutor; the listener hears about every completed promotion there.
+	public void start(PermissionBackend backend, Executor serverExecutor, PromotionPipeline.PromotionListener listener) {
+		permissionBackend = backend;
+		promotionListener = listener;
+		this.serverExecutor = serverExecutor;
+		membershipCache = new GroupMembershipCache(backend, metrics, new GroupMembershipCache.InvalidationListener() {
+			@Override
+			public void onInvalidated(UUID playerId) {
+				serverExecutor.execute(() -> scheduleRankCheck(playerId, 0));
+			}
+
+			@Override
+			public void onInvalidatedAll() {
+				serverExecutor.execute(() -> scheduleOnlinePlayers());
+			}
+		});
+		promotionPipeline = new PromotionPipeline(backend, metrics, serverExecutor, this::onPromotionComplete);
+		scheduleOnlinePlayers();
+	}
+
+	// Submits outstanding promotions, ends every session and hands the final playtimes to the persistence worker
+	public void stop() {
+		cancelReevaluation();
+		if (promotionPipeline != null) {
+			promotionPipeline.shutdown();
+			promotionPipeline = null;
+		}
+		if (membershipCache != null) {
+			membershipCache.close();
+			membershipCache = null;
+		}
+		if (permissionBackend != null) {
+			permissionBackend.close();
+			permissionBackend = null;
+		}
+		serverExecutor = null;
+		playtimeSessions.endAll(nanoClock.getAsLong(), (playerId, unwritten) -> {
+			addUnsavedSeconds(playerId, unwritten);
+			if (!loadingPlayers.containsKey(playerId)) {
+				leaderboard.update(playerId, playerPlaytimes.get(playerId, 0L));
+			}
+		});
+		persistenceWorker.flush(collectUnsavedSeconds());
+	}
+
+	// Allocates nothing unless a save is due, a promotion is decided or a player's groups have to be looked up again
+	public void tick() {
+		long start = System.nanoTime();
+		long currentTime = currentSeconds();
+
+		// Periodically hand the playtimes to the persistence worker
+		if (currentTime - lastSaveTime >= saveIntervalSeconds) {
+			savePlaytime();
+			lastSaveTime = currentTime;
+			if (departedPlayers.size() > cachedPlayers) {
+				evictDepartedPlayers();
+			}
+		}
+
+		// Only check the ranks of players whose next threshold is due
+		sweepTime = currentTime;
+		promotionScheduler.pollDue(currentTime, evaluateDuePlayer);
+
+		// Submit the promotions decided on this tick as one batch
+		if (promotionPipeline != null) {
+			promotionPipeline.flush();
+		}
+
+		departedPlayerCount = departedPlayers.size();
+		scheduledRankChecks = promotionScheduler.size();
+		promotionsInFlight = promotionPipeline != null ? promotionPipeline.inFlight() : 0;
+		metrics.tick.recordSince(start);
+	}
+
+	public void onPlayerJoin(UUID playerId) {
+		playtimeSessions.begin(playerId, nanoClock.getAsLong());
+		departedPlayers.remove(playerId);
+		// Records of players who left a while ago only live in the storage, and other servers may have added to a
+		// shared one since we last saw the player
+		if (!playerPlaytimes.containsKey(playerId) || persistenceWorker.isShared() || loadingPlayers.containsKey(playerId)) {
+			loadPlayer(playerId);
+		}
+		scheduleRankCheck(playerId, 0);
+	}
+
+	public void onPlayerDisconnect(UUID playerId) {
+		long unwritten = playtimeSessions.end(playerId, nanoClock.getAsLong());
+		if (unwritten >= 0) {
+			addUnsavedSeconds(playerId, unwritten);
+			if (!loadingPlayers.containsKey(playerId)) {
+				leaderboard.update(playerId, playerPlaytimes.get(playerId, 0L));
+			}
+			// Kept in memory at least until the save that carries the rest of the session has been written
+			long lastSave = persistenceWorker.submittedSaves();
+			departedPlayers.put(playerId, unwritten > 0 ? lastSave + 1 : lastSave);
+		}
+		promotionScheduler.cancel(playerId);
+		playerStats.remove(playerId);
+	}
+
+	// Reports the current value of one of the ladder's statistics, by its slot in config().ladder(), for an online
+	// player. Checks the player again if the value reached what their last check was waiting for. Allocates nothing
+	// unless it is the player's first value since they joined or the ladder changed.
+	public void updateStat(UUID playerId, int slot, long value) {
+		PlayerStats stats = playerStats.get(playerId);
+		if (stats == null) {
+			int statCount = config.ladder().statCount();
+			if (slot >= statCount || !playtimeSessions.isActive(playerId)) {
+				return;
+			}
+			stats = new PlayerStats(statCount);
+			playerStats.put(playerId, stats);
+		}
+		if (slot >= stats.values.length) {
+			return;
+		}
+		stats.values[slot] = value;
+		if (value >= stats.targets[slot]) {
+			Arrays.fill(stats.targets, RankRequirement.NEVER); // Set again by the check
+			scheduleRankCheck(playerId, 0);
+		}
+	}
+
+	// Stored total plus the player's running session, if any, for players whose record is in memory: everyone
+	// online and the players who left most recently. Use loadPlaytime for anyone else.
+	public long playtime(UUID playerId) {
+		return playtimeSessions.playtime(playerId, nanoClock.getAsLong());
+	}
+
+	// Seconds the player played within the last windowDays days, up to PlaytimeHistory.MAX_WINDOW_DAYS, including
+	// their running session. Kept for every player who played within the longest window. Safe to call from any thread.
+	public long recentPlaytime(UUID playerId, int windowDays) {
+		return playtimeSessions.recentPlaytime(playerId, windowDays, nanoClock.getAsLong());
+	}
+
+	// Like playtime, but a player whose record is not in memory is read from the storage off-thread. The callback
+	// runs on the callback executor and gets -1 if the storage could not be read.
+	public void loadPlaytime(UUID playerId, Executor callbackExecutor, LongConsumer callback) {
+		if (playerPlaytimes.containsKey(playerId) && !loadingPlayers.containsKey(playerId)) {
+			long playtime = playtime(playerId);
+			callbackExecutor.execute(() -> callback.accept(playtime));
+		} else {
+			persistenceWorker.load(playerId, () -> 0, callbackExecutor, callback);
+		}
+	}
+
+	// Merges totals from elsewhere, e.g. vanilla statistics: with sum they are added to what each player has, otherwise
+	// a player is raised to the imported total if it is higher. The difference is written with the next save like any
+	// other playtime. Returns how many players gained time.
+	public int importPlaytime(Map<UUID, Long> seconds, boolean sum) {
+		int changed = 0;
+		for (Map.Entry<UUID, Long> entry : seconds.entrySet()) {
+			UUID playerId = entry.getKey();
+			boolean inMemory = playerPlaytimes.containsKey(playerId);
+			// Players without a record in memory are compared with the total the leaderboard last saw
+			long current = inMemory ? playtime(playerId) : Math.max(leaderboard.playtime(playerId), 0);
+			long increment = sum ? entry.getValue() : entry.getValue() - current;
+			if (increment <= 0) {
+				continue;
+			}
+			addUnsavedSeconds(playerId, increment);
+			// A load on its way only adds the stored total on top of this
+			if (inMemory || loadingPlayers.containsKey(playerId)) {
+				playerPlaytimes.addAndGet(playerId, increment);
+			}
+			leaderboard.update(playerId, current + increment);
+			changed++;
+		}
+		if (changed > 0) {
+			scheduleOnlinePlayers();
+		}
+		return changed;
+	}
+
+	// Seeds the leaderboard with a player's stored total while the storage is read at startup, before anyone joins
+	public void rankStoredPlaytime(UUID playerId, long playtime) {
+		leaderboard.update(playerId, playtime);
+	}
+
+	// Stored totals move the leaderboard as sessions end; the running sessions are brought up to date here, so a
+	// query costs O(online players * log n) on top of its own O(log n). Server thread only.
+	public PlaytimeLeaderboard leaderboard() {
+		long now = nanoClock.getAsLong();
+		playtimeSessions.forEachActive(playerId -> {
+			if (!loadingPlayers.containsKey(playerId)) {
+				leaderboard.update(playerId, playtimeSessions.playtime(playerId, now));
+			}
+		});
+		return leaderboard;
+	}
+
+	// Checks every known player against the current ladder off-thread and promotes the offline ones who qualify; see
+	// RankReevaluation. Online players get a rank check from the engine straight away. Returns null while the engine
+	// is not started or another re-evaluation is still running.
+	public RankReevaluation reevaluateAll(int parallelism, int promotionsPerSecond, RankReevaluation.ProgressListener progress) {
+		if (permissionBackend == null || (reevaluation != null && !reevaluation.isDone())) {
+			return null;
+		}
+		scheduleOnlinePlayers();
+		// Offline players are checked with the total they are ranked with, which is their stored playtime
+		reevaluation = new RankReevaluation(permissionBackend, metrics, config, leaderboard().snapshot(), playtimeSessions::isActive,
+				history, parallelism, promotionsPerSecond, progress);
+		return reevaluation;
+	}
+
+	// Returns false if no re-evaluation was running
+	public boolean cancelReevaluation() {
+		if (reevaluation == null || reevaluation.isDone()) {
+			return false;
+		}
+		reevaluation.cancel();
+		return true;
+	}
+
+	// Safe to call from any thread
+	public boolean isOnline(UUID playerId) {
+		return playtimeSessions.isActive(playerId);
+	}
+
+	// May be read from any thread
+	public RankupConfig config() {
+		return config;
+	}
+
+	// Publishes a new configuration; rank checks already running finish with the one they started with
+	public void setConfig(RankupConfig newConfig) {
+		config = newConfig;
+		// Slots may mean other statistics now; they are reported again for the new ladder
+		playerStats.clear();
+		scheduleOnlinePlayers();
+	}
+
+	// Reads the player's stored total off-thread. A player without a record in memory is only checked once it is in;
+	// one whose record is merely being refreshed from shared storage is checked with what is known. The read happens after
+	// every save queued so far, and time this server has not queued yet is added back on top.
+	private void loadPlayer(UUID playerId) {
+		if (serverExecutor == null) {
+			return;
+		}
+		long load = ++loadCount;
+		loadingPlayers.put(playerId, load);
+		long unsaved = unsavedSeconds.getOrDefault(playerId, 0L);
+		long known = playerPlaytimes.get(playerId, 0L);
+		persistenceWorker.load(playerId, playtimeSessions.checkpointedSeconds(playerId), serverExecutor,
+				storedTotal -> onPlayerLoaded(playerId, load, storedTotal < 0 ? -1 : storedTotal + unsaved, known));
+	}
+
+	private void onPlayerLoaded(UUID playerId, long load, long total, long known) {
+		Long current = loadingPlayers.get(playerId);
+		if (current == null || current != load) {
+			return; // A newer load is on its way
+		}
+		if (total < 0) {
+			loadingPlayers.put(playerId, LOAD_FAILED);
+			scheduleRankCheck(playerId, RETRY_DELAY_SECONDS);
+			return;
+		}
+		loadingPlayers.remove(playerId);
+		// Sessions that ended while the load was on its way are already in the table, so only the difference is added
+		playerPlaytimes.addAndGet(playerId, total - known);
+		leaderboard.update(playerId, playtime(playerId));
+		scheduleRankCheck(playerId, 0);
+	}
+
+	// Drops the records of the players who left longest ago while there are more than fit, but only once their
+	// playtime has been written; the next read of such a player goes to the storage
+	private void evictDepartedPlayers() {
+		long durableSaves = persistenceWorker.durableSaves();
+		Iterator<Map.Entry<UUID, Long>> iterator = departedPlayers.entrySet().iterator();
+		while (departedPlayers.size() > cachedPlayers && iterator.hasNext()) {
+			Map.Entry<UUID, Long> departed = iterator.next();
+			if (departed.getValue() > durableSaves) {
+				break; // Everyone after this player left later, so their time is not written either
+			}
+			UUID playerId = departed.getKey();
+			if (loadingPlayers.containsKey(playerId)) {
+				continue; // Their record is incomplete until a load succeeds
+			}
+			iterator.remove();
+			playerPlaytimes.remove(playerId, 0L);
+			playersAlreadyUpgraded.remove(playerId);
+		}
+	}
+
+	// Monotonic, so wall clock adjustments never shift playtime or rank check deadlines
+	private long currentSeconds() {
+		return nanoClock.getAsLong() / 1_000_000_000L;
+	}
+
+	// Checks the player's rank once the delay has passed, provided they are still online
+	private void scheduleRankCheck(UUID playerId, long delaySeconds) {
+		if (playtimeSessions.isActive(playerId)) {
+			promotionScheduler.schedule(playerId, currentSeconds() + delaySeconds);
+		}
+	}
+
+	// Thresholds or exclusions changed, so every online player's deadline has to be recomputed
+	private void scheduleOnlinePlayers() {
+		long now = currentSeconds();
+		playtimeSessions.forEachActive(playerId -> promotionScheduler.schedule(playerId, now));
+	}
+
+	private void evaluatePlayer(UUID playerId, long currentTime) {
+		if (!playtimeSessions.isActive(playerId)) {
+			return;
+		}
+		Long load = loadingPlayers.get(playerId);
+		if (load != null && load == LOAD_FAILED) {
+			loadPlayer(playerId);
+			return; // Checked once the retried load is in
+		}
+		if (load != null && !playerPlaytimes.containsKey(playerId)) {
+			return; // Nothing is known about the player yet; the load schedules the check once it is in
+		}
+		metrics.rankChecks.increment();
+		long delay = grantRank(playerId, playtime(playerId));
+		if (delay >= 0) {
+			promotionScheduler.schedule(playerId, currentTime + delay);
+		}
+	}
+
+	// Returns how many seconds from now the player needs checking again, or -1 if only a rank, group or config
+	// change can make a difference (those reschedule the player themselves)
+	private long grantRank(UUID playerId, long playtime) {
+		RankupConfig snapshot = config;
+		RankLadder ladder = snapshot.ladder();
+		GroupMembershipCache.Membership membership = getMembership(playerId, snapshot);
+		if (membership == null) {
+			LOGGER.error("User '{}' not found.", playerId);
+			return RETRY_DELAY_SECONDS;
+		}
+		PlayerStats stats = playerStats.get(playerId);
+		if (stats != null) {
+			Arrays.fill(stats.targets, RankRequirement.NEVER);
+		}
+		// Check if the player belongs to any excluded group
+		if (membership.excluded) {
+			return RankEvaluator.NO_RECHECK;
+		}
+
+		checkedPlayer.playerId = playerId;
+		checkedPlayer.stats = stats;
+		int currentRankIndex = RankEvaluator.currentRankIndex(ladder, membership.rankIndex, membership.groups, playtime, checkedPlayer);
+		int targetRankIndex = RankEvaluator.promotionTarget(ladder, currentRankIndex, membership.groups, playtime, checkedPlayer);
+		if (targetRankIndex != -1) {
+			String rankName = ladder.name(targetRankIndex);
+			if (!hasPlayerAlreadyUpgraded(playerId, rankName) && !promotionPipeline.isPending(playerId)) {
+				// Written to the backend off-thread; onPromotionComplete reports back
+				promotionPipeline.request(playerId, rankName);
+				metrics.promotionsRequested.increment();
+			}
+			return RankEvaluator.NO_RECHECK;
+		}
+		// Nothing to grant yet; come back when the next threshold is reached, or when a statistic a rank above depends on changes
+		if (stats != null) {
+			for (int slot = 0; slot < stats.targets.length; slot++) {
+				stats.targets[slot] = ladder.statTarget(currentRankIndex, slot, stats.values[slot]);
+			}
+		}
+		return RankEvaluator.nextCheckDelay(ladder, currentRankIndex, membership.groups, playtime, checkedPlayer);
+	}
+
+	private void onPromotionComplete(UUID playerId, String rankName, Throwable error) {
+		if (error != null) {
+			// Already logged by the pipeline; try again on a later sweep
+			scheduleRankCheck(playerId, RETRY_DELAY_SECONDS);
+		} else {
+			scheduleRankCheck(playerId, 0); // Work out the deadline for the next rank
+			markPlayerAsUpgraded(playerId, rankName); // Mark rank as granted for this player
+		}
+		promotionListener.onPromotionComplete(playerId, rankName, error);
+	}
+
+	private boolean hasPlayerAlreadyUpgraded(UUID playerId, String rankName) {
+		// Check if the player has already been granted the specified rank
+		Set<String> ranks = playersAlreadyUpgraded.get(playerId);
+		return ranks != null && ranks.contains(rankName);
+	}
+
+	private void markPlayerAsUpgraded(UUID playerId, String rankName) {
+		// Mark the specified rank as granted for the player
+		playersAlreadyUpgraded.computeIfAbsent(playerId, k -> new HashSet<>()).add(rankName);
+	}
+
+	private GroupMembershipCache.Membership getMembership(UUID playerId, RankupConfig snapshot) {
+		if (membershipCache == null) {
+			LOGGER.error("Permissions backend is not available.");
+			return null;
+		}
+		return membershipCache.get(playerId, snapshot.ladder(), snapshot.excludedGroups());
+	}
+
+	private void savePlaytime() {
+		long start = System.nanoTime();
+		// Skip the write entirely when nobody is playing and nothing has changed since the last save
+		Map<UUID, Long> seconds = collectUnsavedSeconds();
+		if (seconds != null || playtimeSessions.size() > 0) {
+			persistenceWorker.save(seconds != null ? seconds : Map.of(), playtimeSessions, nanoClock.getAsLong());
+		}
+		metrics.save.recordSince(start);
+	}
+
+	private void addUnsavedSeconds(UUID playerId, long seconds) {
+		if (seconds > 0) {
+			unsavedSeconds.merge(playerId, seconds, Long::sum);
+		}
+	}
+
+	private Map<UUID, Long> collectUnsavedSeconds() {
+		if (unsavedSeconds.isEmpty()) {
+			return null;
+		}
+		Map<UUID, Long> seconds = new HashMap<>(unsavedSeconds);
+		unsavedSeconds.clear();
+		return seconds;
+	}
+
+	// Recent playtime and statistics of the player being checked; one instance serves every check, so checks allocate nothing
+	private final class CheckedPlayer implements RankEvaluator.PlayerInputs {
+		private UUID playerId;
+		private PlayerStats stats; // Null until the player's statistics are reported
+
+		@Override
+		public long recentSeconds(int windowDays) {
+			return recentPlaytime(playerId, windowDays);
+		}
+
+		@Override
+		public long stat(int slot) {
+			return stats != null && slot < stats.values.length ? stats.values[slot] : -1;
+		}
+	}
+
+	private static final class PlayerStats {
+		private final long[] values; // By slot, -1 until reported
+		private final long[] targets; // By slot, the value that calls for another rank check; any until a check has seen the values
+
+		private PlayerStats(int statCount) {
+			this.values = new long[statCount];
+			this.targets = new long[statCount];
+			Arrays.fill(values, -1);
+		}
+	}
+}
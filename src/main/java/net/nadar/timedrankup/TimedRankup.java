@@ -2,79 +2,125 @@ package net.nadar.timedrankup;
 
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
-import com.mojang.authlib.Agent;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParseException;
 import com.mojang.authlib.GameProfile;
-import com.mojang.authlib.GameProfileRepository;
-import com.mojang.authlib.ProfileLookupCallback;
 import com.mojang.brigadier.arguments.IntegerArgumentType;
 import com.mojang.brigadier.arguments.StringArgumentType;
 import com.mojang.brigadier.builder.LiteralArgumentBuilder;
 import com.mojang.brigadier.builder.RequiredArgumentBuilder;
-import com.mojang.brigadier.exceptions.CommandSyntaxException;
 import com.mojang.brigadier.suggestion.SuggestionProvider;
 import net.fabricmc.api.ModInitializer;
 import net.fabricmc.fabric.api.command.v2.CommandRegistrationCallback;
+import net.fabricmc.fabric.api.event.lifecycle.v1.ServerLifecycleEvents;
 import net.fabricmc.fabric.api.event.lifecycle.v1.ServerTickEvents;
+import net.fabricmc.fabric.api.networking.v1.ServerPlayConnectionEvents;
 import net.luckperms.api.LuckPerms;
 import net.luckperms.api.LuckPermsProvider;
-import net.luckperms.api.model.group.Group;
-import net.luckperms.api.model.user.User;
-import net.luckperms.api.query.QueryOptions;
 import net.minecraft.command.CommandSource;
+import net.minecraft.registry.Registries;
 import net.minecraft.server.MinecraftServer;
 import net.minecraft.server.command.ServerCommandSource;
 import net.minecraft.server.network.ServerPlayerEntity;
+import net.minecraft.stat.ServerStatHandler;
+import net.minecraft.stat.Stat;
+import net.minecraft.stat.StatType;
 import net.minecraft.text.Text;
+import net.minecraft.util.Identifier;
 import net.minecraft.util.UserCache;
+import net.minecraft.util.WorldSavePath;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import java.io.*;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
 
 public class TimedRankup implements ModInitializer {
 
 	private static final Logger LOGGER = LogManager.getLogger();
-	private final Map<UUID, Long> playerPlaytimes = new HashMap<>();
-	private static final String PLAYTIME_FILE_PATH = "config/TimedRankup/playtime.txt";
+	private final PlaytimeTable playerPlaytimes = new PlaytimeTable();
+	private static final String PLAYTIME_FILE_PATH = "config/TimedRankup/playtime.dat";
+	private static final String LEGACY_PLAYTIME_FILE_PATH = "config/TimedRankup/playtime.txt";
 	private static final String CONFIG_FILE_PATH = "config/TimedRankup/timedrankup_ranks.json";
 	private static final String EXCLUSION_CONFIG_FILE_PATH = "config/TimedRankup/exclusions.json";
+	private static final String SETTINGS_FILE_PATH = "config/TimedRankup/settings.json";
+	private static final String METRICS_FILE_PATH = "config/TimedRankup/metrics.prom";
+	private static final String NAMES_FILE_PATH = "config/TimedRankup/names.txt";
+	private static final String HISTORY_FILE_PATH = "config/TimedRankup/history.dat";
+	private static final int MAX_NAME_SUGGESTIONS = 50;
+	private static final int LEADERBOARD_PAGE_SIZE = 10;
+	private static final long CONFIG_WRITE_DELAY_MILLIS = 500; // Rank edits arriving within this are written together
+	private static final long STAT_POLL_INTERVAL_NANOS = 5_000_000_000L; // How often online players' statistics are read for rank requirements
 	private final Gson gson = new GsonBuilder().setPrettyPrinting().create();
-	private List<RankConfig> rankConfigs;
-	private ExclusionConfig exclusions;
-	private final UserCache userCache;
-
-	// Tab completion for player names
-	private static final SuggestionProvider<ServerCommandSource> PLAYER_SUGGESTIONS = (context, builder) -> {
-		MinecraftServer server = context.getSource().getServer();
-		return CommandSource.suggestMatching(server.getPlayerManager().getPlayerList().stream().map(ServerPlayerEntity::getName).map(Text::getString), builder);
-	};
-
-	public TimedRankup() {
-		// Instantiate GameProfileRepository (you might need to provide necessary dependencies)
-		GameProfileRepository profileRepository = new GameProfileRepository() {
-			@Override
-			public void findProfilesByNames(String[] names, Agent agent, ProfileLookupCallback callback) {
-
-			}
-		};
-
-		// Specify the directory for user cache data
-		File cacheDirectory = new File("timedrankup");
-
-		// Instantiate UserCache with the created objects
-		userCache = new UserCache(profileRepository, cacheDirectory);
-	}
+	private final ConfigWriter<RankupConfig> configWriter = new ConfigWriter<>(Paths.get(CONFIG_FILE_PATH), CONFIG_WRITE_DELAY_MILLIS, this::writeConfig);
+	// Renders the replies of read-only commands so the server thread only sends them
+	private final ExecutorService commandExecutor = Executors.newSingleThreadExecutor(runnable -> {
+		Thread thread = new Thread(runnable, "TimedRankup-Commands");
+		thread.setDaemon(true);
+		return thread;
+	});
+	private SettingsConfig settings = new SettingsConfig();
+	private volatile MinecraftServer server; // Set while the server is running
+	private final PlayerNameIndex nameIndex = new PlayerNameIndex(Paths.get(NAMES_FILE_PATH));
+	private final PlaytimeHistory history = new PlaytimeHistory(Paths.get(HISTORY_FILE_PATH), System::currentTimeMillis);
+	private final Metrics metrics = new Metrics();
+	private MetricsExporter metricsExporter; // Running while the server is, unless disabled in the settings
+	private PlaytimeQueryServer queryServer; // Running while the server is, if enabled in the settings
+	private long lastQuerySnapshot; // System.nanoTime() of the last snapshot handed to the query server
+	private long lastStatPoll; // System.nanoTime() of the last time online players' statistics were read
+	private RankLadder statLadder; // Ladder trackedStats was resolved for
+	private Stat<?>[] trackedStats = new Stat<?>[0]; // By the ladder's statistic slot; null for statistics the game does not know
+	private PlaytimeStorage playtimeStorage; // Chosen by the settings
+	private PlaytimePersistenceWorker persistenceWorker;
+	private RankupEngine engine; // Playtime accounting and rank checks; created once the settings are loaded
+	private ConfigWatcher configWatcher; // Reloads the rank and exclusion files when they are edited
+	private final AtomicBoolean importRunning = new AtomicBoolean();
+
+	// Tab completion for player names, including offline players who joined before
+	private final SuggestionProvider<ServerCommandSource> playerSuggestions = (context, builder) ->
+			CommandSource.suggestMatching(nameIndex.complete(builder.getRemaining(), MAX_NAME_SUGGESTIONS), builder);
 
 
 	@Override
 	public void onInitialize() {
 		// Check and load config
+		loadSettings();
+		playtimeStorage = createPlaytimeStorage();
+		history.load();
+		persistenceWorker = new PlaytimePersistenceWorker(playtimeStorage, metrics, history);
+		engine = new RankupEngine(playerPlaytimes, persistenceWorker, history, metrics, System::nanoTime, settings.saveIntervalSeconds, settings.cachedOfflinePlayers);
 		loadConfig();
+		watchConfig();
+
+		// Names of players who joined before, read in the background
+		nameIndex.load();
+
+		// Recover playtime from the storage; only the leaderboard keeps it, players' records are read as they join
+		try {
+			playtimeStorage.loadAll(engine::rankStoredPlaytime);
+		} catch (IOException e) {
+			LOGGER.error("Error loading playtime data: {}", e.getMessage());
+		}
 
 		// Register server tick event listener
 		ServerTickEvents.START_SERVER_TICK.register(this::onServerTick);
 
+		// LuckPerms is only available once the server has started
+		ServerLifecycleEvents.SERVER_STARTED.register(this::onServerStarted);
+
+		// Playtime is accounted per session, and players get a rank check deadline while they are online
+		ServerPlayConnectionEvents.JOIN.register((handler, sender, server) -> onPlayerJoin(handler.getPlayer()));
+		ServerPlayConnectionEvents.DISCONNECT.register((handler, server) -> onPlayerDisconnect(handler.getPlayer()));
+
+		// Flush pending playtime data before the server shuts down
+		ServerLifecycleEvents.SERVER_STOPPING.register(this::onServerStopping);
+
 		// Register commands
 		registerCommands();
 	}
@@ -89,18 +135,133 @@ public class TimedRankup implements ModInitializer {
 			generateDefaultExclusionConfig();
 		}
 
+		RankupConfig config = readConfig();
+		if (config != null) {
+			engine.setConfig(config);
+		}
+	}
+
+	// Parses both config files into a new snapshot, keeping the current ranks or exclusions where a file has none.
+	// Returns null if the files cannot be read. Safe to call from any thread.
+	private RankupConfig readConfig() {
 		try (Reader reader = new FileReader(CONFIG_FILE_PATH);
 			 Reader exclusionReader = new FileReader(EXCLUSION_CONFIG_FILE_PATH)) {
 			Config config = gson.fromJson(reader, Config.class);
 			ExclusionConfig exclusionConfig = gson.fromJson(exclusionReader, ExclusionConfig.class);
+			RankupConfig current = engine.config();
+			List<RankupConfig.Rank> ranks = current.ranks();
 			if (config != null && config.ranks != null) {
-				rankConfigs = config.ranks;
+				ranks = new ArrayList<>();
+				for (RankConfig rankConfig : config.ranks) {
+					if (rankConfig != null && rankConfig.name != null) {
+						ranks.add(toRank(rankConfig));
+					}
+				}
 			}
+			List<String> excludedGroups = current.excludedGroupNames();
 			if (exclusionConfig != null) {
-				exclusions = exclusionConfig;
+				excludedGroups = exclusionConfig.excludedGroups != null ? exclusionConfig.excludedGroups : List.of();
 			}
-		} catch (IOException e) {
+			return new RankupConfig(ranks, excludedGroups);
+		} catch (IOException | JsonParseException | IllegalArgumentException e) {
 			LOGGER.error("Error reading config files: {}", e.getMessage());
+			return null;
+		}
+	}
+
+	// A recent threshold without a window counts the longest window the history keeps
+	private static RankupConfig.Rank toRank(RankConfig rankConfig) {
+		int recentThreshold = rankConfig.recentPlaytimeThreshold != null ? rankConfig.recentPlaytimeThreshold : 0;
+		int windowDays = rankConfig.recentWindowDays != null ? rankConfig.recentWindowDays : PlaytimeHistory.MAX_WINDOW_DAYS;
+		if (recentThreshold > 0 && (windowDays < 1 || windowDays > PlaytimeHistory.MAX_WINDOW_DAYS)) {
+			LOGGER.warn("Rank {} has a recent playtime window of {} days; using one between 1 and {} days.", rankConfig.name, windowDays, PlaytimeHistory.MAX_WINDOW_DAYS);
+		}
+		RankRequirement requirement = rankConfig.requires != null && !rankConfig.requires.isJsonNull() ? RankRequirement.parse(rankConfig.requires) : null;
+		return new RankupConfig.Rank(rankConfig.name, rankConfig.playtimeThreshold, recentThreshold, windowDays, requirement);
+	}
+
+	private void watchConfig() {
+		Path configFile = Paths.get(CONFIG_FILE_PATH);
+		Set<String> fileNames = Set.of(configFile.getFileName().toString(), Paths.get(EXCLUSION_CONFIG_FILE_PATH).getFileName().toString());
+		try {
+			configWatcher = new ConfigWatcher(configFile.getParent(), fileNames, this::onConfigFilesChanged);
+		} catch (IOException e) {
+			LOGGER.error("Error watching config files, use /timedrankup reload after editing them: {}", e.getMessage());
+		}
+	}
+
+	// Runs on the watcher thread: the files are parsed here and only the finished snapshot is handed to the server thread
+	private void onConfigFilesChanged() {
+		RankupConfig config = readConfig();
+		if (config == null) {
+			return; // Keeps the current configuration, e.g. while a file is half edited
+		}
+		MinecraftServer running = server;
+		if (running != null) {
+			running.execute(() -> applyReloadedConfig(config));
+		} else {
+			applyReloadedConfig(config); // Nobody is online before the server has started
+		}
+	}
+
+	private boolean applyReloadedConfig(RankupConfig config) {
+		// Our own saves come back through the watcher too; those change nothing
+		if (config.equals(engine.config())) {
+			return false;
+		}
+		// The file is older than the ranks in memory until the pending write lands, which triggers another reload
+		if (configWriter.isPending()) {
+			return false;
+		}
+		engine.setConfig(config);
+		LOGGER.info("Configuration reloaded: {} ranks, {} excluded groups", config.ranks().size(), config.excludedGroupNames().size());
+		return true;
+	}
+
+	private PlaytimeStorage createPlaytimeStorage() {
+		StorageSettings storage = settings.storage;
+		if (storage != null && "jdbc".equalsIgnoreCase(storage.type)) {
+			try {
+				return new JdbcPlaytimeStorage(storage.jdbcUrl, storage.username, storage.password, storage.poolSize, metrics);
+			} catch (IOException e) {
+				LOGGER.error("Error connecting to the playtime database, keeping playtime locally instead: {}", e.getMessage());
+			}
+		}
+		return new PlaytimeJournal(Paths.get(PLAYTIME_FILE_PATH), Paths.get(LEGACY_PLAYTIME_FILE_PATH), metrics);
+	}
+
+	private void loadSettings() {
+		File settingsFile = new File(SETTINGS_FILE_PATH);
+		if (!settingsFile.exists()) {
+			generateDefaultSettings();
+		}
+
+		try (Reader reader = new FileReader(SETTINGS_FILE_PATH)) {
+			SettingsConfig settingsConfig = gson.fromJson(reader, SettingsConfig.class);
+			if (settingsConfig != null) {
+				settings = settingsConfig;
+			}
+		} catch (IOException e) {
+			LOGGER.error("Error reading settings file: {}", e.getMessage());
+		}
+	}
+
+	private void generateDefaultSettings() {
+		File settingsFile = new File(SETTINGS_FILE_PATH);
+		File parentDirectory = settingsFile.getParentFile();
+		if (!parentDirectory.exists()) {
+			boolean success = parentDirectory.mkdirs();
+			if (!success) {
+				LOGGER.error("Failed to create directories for settings file.");
+				return;
+			}
+		}
+
+		try (BufferedWriter writer = new BufferedWriter(new FileWriter(SETTINGS_FILE_PATH))) {
+			gson.toJson(new SettingsConfig(), writer);
+			LOGGER.info("Default settings file generated: {}", SETTINGS_FILE_PATH);
+		} catch (IOException e) {
+			LOGGER.error("Error generating default settings file: {}", e.getMessage());
 		}
 	}
 
@@ -153,181 +314,127 @@ public class TimedRankup implements ModInitializer {
 		}
 	}
 
-	private static final long SAVE_INTERVAL_SECONDS = 15; // Update every 15 seconds
-	private long lastSaveTime = 0;
-
 	private void onServerTick(MinecraftServer server) {
-		long currentTime = System.currentTimeMillis() / 1000; // Convert current time to seconds
-
-		// Check if it's time to save playtime data based on the interval
-		if (currentTime - lastSaveTime >= SAVE_INTERVAL_SECONDS) {
-			// Update playtime for all online players
-			server.getPlayerManager().getPlayerList().forEach(player -> {
-				UUID playerId = player.getUuid();
-				long currentPlayerTime = playerPlaytimes.getOrDefault(playerId, 0L);
-				playerPlaytimes.put(playerId, currentPlayerTime + SAVE_INTERVAL_SECONDS);
-
-				// Check if the player's playtime meets the threshold for a rank and grant the rank if so
-				grantRank(player, currentPlayerTime + SAVE_INTERVAL_SECONDS);
-			});
-
-			// Save playtime data to file
-			savePlaytimeToFile();
-
-			// Update last save time
-			lastSaveTime = currentTime;
+		engine.tick();
+		if (queryServer != null && System.nanoTime() - lastQuerySnapshot >= settings.http.snapshotIntervalSeconds * 1_000_000_000L) {
+			publishQuerySnapshot();
+		}
+		if (System.nanoTime() - lastStatPoll >= STAT_POLL_INTERVAL_NANOS) {
+			pollStats(server);
 		}
 	}
 
-	private final Map<UUID, Set<String>> playersAlreadyUpgraded = new HashMap<>();
-	private void grantRank(ServerPlayerEntity player, long playtime) {
-		if (player != null) {
-			// Check if the player belongs to any excluded group
-			if (isPlayerExcluded(player)) {
-				return;
-			}
-			UUID playerId = player.getUuid();
-			MinecraftServer server = player.getServer();
-			assert server != null;
-			ServerCommandSource source = server.getCommandSource().withLevel(2).withOutput(new SystemOutCommandOutput(System.out));
-
-			String currentRank = getCurrentRank(player.getName().getString());
-
-			String maxRank = getMaxRank(); // Dynamically determine the maximum rank
-
-			if (currentRank != null) {
-				// Check if the player has reached the maximum rank
-				if (!currentRank.equalsIgnoreCase(maxRank)) {
-					// Get the index of the current rank in the rankConfigs list
-					int currentRankIndex = -1;
-					for (int i = 0; i < rankConfigs.size(); i++) {
-						if (rankConfigs.get(i).name.equalsIgnoreCase(currentRank)) {
-							currentRankIndex = i;
-							break;
-						}
-					}
-					// Iterate through rank configurations to find subsequent upgrades
-					if (currentRankIndex != -1) {
-						for (int i = currentRankIndex + 1; i < rankConfigs.size(); i++) {
-							RankConfig rankConfig = rankConfigs.get(i);
-							if (playtime >= rankConfig.playtimeThreshold && !hasPlayerAlreadyUpgraded(playerId, rankConfig.name)) {
-								try {
-									String command = "lp user " + player.getName().getString() + " parent set " + rankConfig.name;
-									runConsoleCommand(server, command);
-									LOGGER.info("Player {} has been granted the rank: {}", player.getName().getString(), rankConfig.name);
-									playerPlaytimes.put(playerId, playtime); // Update player's playtime
-									markPlayerAsUpgraded(playerId, rankConfig.name); // Mark rank as granted for this player
-									break; // Exit the loop after granting the rank
-								} catch (Exception e) {
-									//LOGGER.error("Error granting rank to player {}: {}", player.getName().getString(), e.getMessage());
-								}
-							}
-						}
-					}
-				} else {
-					//LOGGER.info("Player {} has reached the maximum rank: {}", player.getName().getString(), maxRank);
+	// Hands the engine the statistics rank requirements name for every online player; the engine only checks a
+	// player again if one that matters to them changed
+	private void pollStats(MinecraftServer server) {
+		lastStatPoll = System.nanoTime();
+		RankLadder ladder = engine.config().ladder();
+		if (ladder != statLadder) {
+			trackedStats = resolveStats(ladder);
+			statLadder = ladder;
+		}
+		if (trackedStats.length == 0) {
+			return;
+		}
+		List<ServerPlayerEntity> players = server.getPlayerManager().getPlayerList();
+		for (int i = 0; i < players.size(); i++) {
+			ServerPlayerEntity player = players.get(i);
+			ServerStatHandler statHandler = player.getStatHandler();
+			for (int slot = 0; slot < trackedStats.length; slot++) {
+				if (trackedStats[slot] != null) {
+					engine.updateStat(player.getUuid(), slot, statHandler.getStat(trackedStats[slot]));
 				}
-			} else {
-				//LOGGER.error("Failed to retrieve current rank for player {}.", player.getName().getString());
 			}
-		} else {
-			//LOGGER.error("Player object is null.");
 		}
 	}
 
-	private boolean hasPlayerAlreadyUpgraded(UUID playerId, String rankName) {
-		// Check if the player has already been granted the specified rank
-		return playersAlreadyUpgraded.getOrDefault(playerId, new HashSet<>()).contains(rankName);
+	private static Stat<?>[] resolveStats(RankLadder ladder) {
+		Stat<?>[] stats = new Stat<?>[ladder.statCount()];
+		for (int slot = 0; slot < stats.length; slot++) {
+			Identifier typeId = Identifier.tryParse(ladder.statType(slot));
+			StatType<?> type = typeId != null ? Registries.STAT_TYPE.get(typeId) : null;
+			stats[slot] = type != null ? resolveStat(type, ladder.statKey(slot)) : null;
+			if (stats[slot] == null) {
+				LOGGER.warn("Unknown statistic {} {} in a rank requirement; it is never met.", ladder.statType(slot), ladder.statKey(slot));
+			}
+		}
+		return stats;
 	}
 
-	private void markPlayerAsUpgraded(UUID playerId, String rankName) {
-		// Mark the specified rank as granted for the player
-		playersAlreadyUpgraded.computeIfAbsent(playerId, k -> new HashSet<>()).add(rankName);
+	private static <T> Stat<T> resolveStat(StatType<T> type, String key) {
+		Identifier id = Identifier.tryParse(key);
+		return id != null && type.getRegistry().containsId(id) ? type.getOrCreateStat(type.getRegistry().get(id)) : null;
 	}
 
+	// Copies the leaderboard here; sorting it and everything else the query server does happens on its own threads
+	private void publishQuerySnapshot() {
+		lastQuerySnapshot = System.nanoTime();
+		queryServer.publish(engine.leaderboard().snapshot(), engine.config());
+	}
 
-	private String getMaxRank() {
-		String maxRank = null;
-		long maxThreshold = Long.MIN_VALUE;
-
-		for (RankConfig rankConfig : rankConfigs) {
-			if (rankConfig.playtimeThreshold > maxThreshold) {
-				maxThreshold = rankConfig.playtimeThreshold;
-				maxRank = rankConfig.name;
+	private void onServerStarted(MinecraftServer server) {
+		this.server = server;
+		if (configWatcher == null) {
+			watchConfig(); // Closed when the previous server an integrated client ran stopped
+		}
+		if (settings.metricsExportIntervalSeconds > 0) {
+			metricsExporter = new MetricsExporter(metrics, Paths.get(METRICS_FILE_PATH), settings.metricsExportIntervalSeconds);
+		}
+		if (settings.http != null && settings.http.enabled) {
+			try {
+				queryServer = new PlaytimeQueryServer(settings.http.bindAddress, settings.http.port, settings.http.threads, metrics, nameIndex::get, nameIndex::name);
+				publishQuerySnapshot();
+			} catch (IOException e) {
+				LOGGER.error("Error starting the playtime query endpoint: {}", e.getMessage());
 			}
 		}
-
-		return maxRank;
-	}
-
-	private String getCurrentRank(String playerName) {
-		LuckPerms luckPerms = LuckPermsProvider.get();
-		if (luckPerms == null) {
+		try {
+			LuckPerms luckPerms = LuckPermsProvider.get();
+			engine.start(new LuckPermsBackend(luckPerms), server::execute, (playerId, rankName, error) -> onPromotionComplete(server, playerId, rankName, error));
+		} catch (IllegalStateException e) {
 			LOGGER.error("LuckPerms is not initialized.");
-			return null;
 		}
+	}
 
-		User user = luckPerms.getUserManager().getUser(playerName);
-		if (user == null) {
-			LOGGER.error("User '{}' not found.", playerName);
-			return null;
+	private void onServerStopping(MinecraftServer server) {
+		if (metricsExporter != null) {
+			metricsExporter.shutdown();
+			metricsExporter = null;
 		}
-
-		List<Group> inheritedGroups = (List<Group>) user.getInheritedGroups(QueryOptions.nonContextual());
-		for (Group group : inheritedGroups) {
-			String groupName = group.getName();
-			for (RankConfig rankConfig : rankConfigs) {
-				if (rankConfig.name.equalsIgnoreCase(groupName)) {
-					return groupName;
-				}
-			}
+		if (queryServer != null) {
+			queryServer.stop();
+			queryServer = null;
 		}
-
-		long playerPlaytime = playerPlaytimes.getOrDefault(user.getUniqueId(), 0L);
-		for (RankConfig rankConfig : rankConfigs) {
-			if (playerPlaytime >= rankConfig.playtimeThreshold) {
-				return rankConfig.name;
-			}
+		// Players are only disconnected after this, so the engine ends their sessions to include them in the final save
+		engine.stop();
+		configWriter.flush();
+		nameIndex.flush();
+		if (configWatcher != null) {
+			configWatcher.close();
+			configWatcher = null;
 		}
-
-		return null;
+		this.server = null;
 	}
 
+	private void onPlayerJoin(ServerPlayerEntity player) {
+		nameIndex.record(player.getUuid(), player.getName().getString());
+		engine.onPlayerJoin(player.getUuid());
+	}
 
-	private void runConsoleCommand(MinecraftServer server, String command) {
-		if (server != null) {
-			ServerCommandSource source = server.getCommandSource();
-			try {
-				server.getCommandManager().getDispatcher().execute(command, source);
-				LOGGER.info("Executed command successfully: {}", command);
-			} catch (CommandSyntaxException e) {
-				LOGGER.error("Error executing command: {}", e.getMessage());
-			}
-		} else {
-			LOGGER.error("Server is not available");
-		}
+	private void onPlayerDisconnect(ServerPlayerEntity player) {
+		engine.onPlayerDisconnect(player.getUuid());
 	}
 
-	private void savePlaytimeToFile() {
-		File playtimeFile = new File(PLAYTIME_FILE_PATH);
-		File parentDirectory = playtimeFile.getParentFile();
-		if (!parentDirectory.exists()) {
-			boolean success = parentDirectory.mkdirs();
-			if (!success) {
-				LOGGER.error("Failed to create directories for playtime file.");
-				return;
-			}
+	private void onPromotionComplete(MinecraftServer server, UUID playerId, String rankName, Throwable error) {
+		if (error != null) {
+			return; // Already logged by the pipeline, and the engine tries again later
 		}
-
-		try (BufferedWriter writer = new BufferedWriter(new FileWriter(playtimeFile))) {
-			for (Map.Entry<UUID, Long> entry : playerPlaytimes.entrySet()) {
-				UUID playerId = entry.getKey();
-				long playtime = entry.getValue();
-				writer.write(playerId.toString() + "," + playtime);
-				writer.newLine();
-			}
-		} catch (IOException e) {
-			LOGGER.error("Error saving playtime data to file: {}", e.getMessage());
+		ServerPlayerEntity player = server.getPlayerManager().getPlayer(playerId);
+		if (player != null) {
+			LOGGER.info("Player {} has been granted the rank: {}", player.getName().getString(), rankName);
+			player.sendMessage(Text.of("You have been promoted to " + rankName + "!"));
+		} else {
+			LOGGER.info("Player {} has been granted the rank: {}", playerId, rankName);
 		}
 	}
 
@@ -342,7 +449,15 @@ public class TimedRankup implements ModInitializer {
 													RequiredArgumentBuilder.<ServerCommandSource, String>argument("name", StringArgumentType.word())
 															.then(
 																	RequiredArgumentBuilder.<ServerCommandSource, Integer>argument("playtime", IntegerArgumentType.integer())
-																			.executes(context -> addRank(context.getSource(), StringArgumentType.getString(context, "name"), IntegerArgumentType.getInteger(context, "playtime")))
+																			.executes(context -> addRank(context.getSource(), StringArgumentType.getString(context, "name"), IntegerArgumentType.getInteger(context, "playtime"), 0, 0))
+																			.then(
+																					RequiredArgumentBuilder.<ServerCommandSource, Integer>argument("recentPlaytime", IntegerArgumentType.integer(0))
+																							.then(
+																									RequiredArgumentBuilder.<ServerCommandSource, Integer>argument("days", IntegerArgumentType.integer(1, PlaytimeHistory.MAX_WINDOW_DAYS))
+																											.executes(context -> addRank(context.getSource(), StringArgumentType.getString(context, "name"), IntegerArgumentType.getInteger(context, "playtime"),
+																													IntegerArgumentType.getInteger(context, "recentPlaytime"), IntegerArgumentType.getInteger(context, "days")))
+																							)
+																			)
 															)
 											)
 							)
@@ -354,7 +469,15 @@ public class TimedRankup implements ModInitializer {
 																	RequiredArgumentBuilder.<ServerCommandSource, String>argument("newName", StringArgumentType.word())
 																			.then(
 																					RequiredArgumentBuilder.<ServerCommandSource, Integer>argument("playtime", IntegerArgumentType.integer())
-																							.executes(context -> updateRank(context.getSource(), StringArgumentType.getString(context, "oldName"), StringArgumentType.getString(context, "newName"), IntegerArgumentType.getInteger(context, "playtime")))
+																							.executes(context -> updateRank(context.getSource(), StringArgumentType.getString(context, "oldName"), StringArgumentType.getString(context, "newName"), IntegerArgumentType.getInteger(context, "playtime"), -1, 0))
+																							.then(
+																									RequiredArgumentBuilder.<ServerCommandSource, Integer>argument("recentPlaytime", IntegerArgumentType.integer(0))
+																											.then(
+																													RequiredArgumentBuilder.<ServerCommandSource, Integer>argument("days", IntegerArgumentType.integer(1, PlaytimeHistory.MAX_WINDOW_DAYS))
+																															.executes(context -> updateRank(context.getSource(), StringArgumentType.getString(context, "oldName"), StringArgumentType.getString(context, "newName"),
+																																	IntegerArgumentType.getInteger(context, "playtime"), IntegerArgumentType.getInteger(context, "recentPlaytime"), IntegerArgumentType.getInteger(context, "days")))
+																											)
+																							)
 																			)
 															)
 											)
@@ -362,11 +485,38 @@ public class TimedRankup implements ModInitializer {
 							.then(
 									LiteralArgumentBuilder.<ServerCommandSource>literal("forceupgrade")
 											.executes(context -> forceUpgrade(context.getSource()))
+											.then(
+													LiteralArgumentBuilder.<ServerCommandSource>literal("cancel")
+															.executes(context -> cancelForceUpgrade(context.getSource()))
+											)
 							)
 							.then(
 									LiteralArgumentBuilder.<ServerCommandSource>literal("listranks")
 											.executes(context -> listRanks(context.getSource()))
 							)
+							.then(
+									LiteralArgumentBuilder.<ServerCommandSource>literal("import")
+											.then(
+													LiteralArgumentBuilder.<ServerCommandSource>literal("vanillastats")
+															.executes(context -> importVanillaStats(context.getSource(), false))
+															.then(
+																	LiteralArgumentBuilder.<ServerCommandSource>literal("max")
+																			.executes(context -> importVanillaStats(context.getSource(), false))
+															)
+															.then(
+																	LiteralArgumentBuilder.<ServerCommandSource>literal("sum")
+																			.executes(context -> importVanillaStats(context.getSource(), true))
+															)
+											)
+							)
+							.then(
+									LiteralArgumentBuilder.<ServerCommandSource>literal("reload")
+											.executes(context -> reloadConfig(context.getSource()))
+							)
+							.then(
+									LiteralArgumentBuilder.<ServerCommandSource>literal("stats")
+											.executes(context -> showStats(context.getSource()))
+							)
 							.then(
 									LiteralArgumentBuilder.<ServerCommandSource>literal("removerank")
 											.then(
@@ -379,29 +529,74 @@ public class TimedRankup implements ModInitializer {
 			dispatcher.register(
 					LiteralArgumentBuilder.<ServerCommandSource>literal("playtime")
 							.executes(context -> viewOwnPlaytime(context.getSource()))
+							.then(
+									LiteralArgumentBuilder.<ServerCommandSource>literal("top")
+											.executes(context -> viewLeaderboard(context.getSource(), 1))
+											.then(
+													RequiredArgumentBuilder.<ServerCommandSource, Integer>argument("page", IntegerArgumentType.integer(1))
+															.executes(context -> viewLeaderboard(context.getSource(), IntegerArgumentType.getInteger(context, "page")))
+											)
+							)
+							.then(
+									LiteralArgumentBuilder.<ServerCommandSource>literal("rank")
+											.executes(context -> viewOwnLeaderboardPosition(context.getSource()))
+							)
 							.then(
 									RequiredArgumentBuilder.<ServerCommandSource, String>argument("player", StringArgumentType.word())
-											.suggests(PLAYER_SUGGESTIONS) // Tab completion for player names
+											.suggests(playerSuggestions) // Tab completion for player names
 											.executes(context -> viewPlayerPlaytime(context.getSource(), StringArgumentType.getString(context, "player")))
 							)
 			);
 		});
 	}
-	private void saveConfig() {
-		try (BufferedWriter writer = new BufferedWriter(new FileWriter(CONFIG_FILE_PATH))) {
-			gson.toJson(new Config(rankConfigs), writer);
-			LOGGER.info("Configuration file updated: {}", CONFIG_FILE_PATH);
-		} catch (IOException e) {
-			LOGGER.error("Error saving configuration file: {}", e.getMessage());
+
+	// Publishes the changed ranks as a new snapshot; the config file is written in the background shortly after
+	private void publishRanks(RankupConfig config, List<RankupConfig.Rank> ranks) {
+		RankupConfig updated = config.withRanks(ranks);
+		engine.setConfig(updated);
+		configWriter.write(updated);
+	}
+
+	// Runs on the config writer's thread
+	private void writeConfig(RankupConfig config, Writer writer) {
+		List<RankConfig> ranks = new ArrayList<>();
+		for (RankupConfig.Rank rank : config.ranks()) {
+			RankConfig rankConfig = new RankConfig(rank.name(), (int) rank.playtimeThreshold());
+			if (rank.recentPlaytimeThreshold() > 0) {
+				rankConfig.recentPlaytimeThreshold = (int) rank.recentPlaytimeThreshold();
+				rankConfig.recentWindowDays = rank.recentWindowDays();
+			}
+			if (rank.requirement() != null) {
+				rankConfig.requires = rank.requirement().toJson();
+			}
+			ranks.add(rankConfig);
 		}
+		gson.toJson(new Config(ranks), writer);
 	}
 
-	private int addRank(ServerCommandSource source, String name, int playtime) {
+	private int reloadConfig(ServerCommandSource source) {
+		RankupConfig config = readConfig();
+		if (config == null) {
+			source.sendFeedback(() -> Text.of("Could not read the config files, keeping the current configuration. Please check server logs for details."), false);
+			return 0;
+		}
+		if (configWriter.isPending()) {
+			source.sendFeedback(() -> Text.of("A rank change is still being written to the config file; try again in a moment."), false);
+			return 0;
+		}
+		applyReloadedConfig(config);
+		source.sendFeedback(() -> Text.of("Configuration reloaded: " + config.ranks().size() + " ranks, " + config.excludedGroupNames().size() + " excluded groups"), true);
+		return 1;
+	}
+
+	private int addRank(ServerCommandSource source, String name, int playtime, int recentPlaytime, int days) {
 		try {
-			RankConfig newRank = new RankConfig(name, playtime); // No need to convert, as playtime is in seconds
-			rankConfigs.add(newRank);
-			saveConfig();
-			source.sendFeedback(() -> Text.of("Rank added: " + name + " with playtime threshold: " + playtime + " seconds"), true); // Update message to include seconds
+			RankupConfig config = engine.config();
+			List<RankupConfig.Rank> ranks = new ArrayList<>(config.ranks());
+			RankupConfig.Rank rank = new RankupConfig.Rank(name, playtime, recentPlaytime, days); // No need to convert, as playtime is in seconds
+			ranks.add(rank);
+			publishRanks(config, ranks);
+			source.sendFeedback(() -> Text.of("Rank added: " + name + " with playtime threshold: " + playtime + " seconds" + describeConditions(rank)), true); // Update message to include seconds
 			return 1;
 		} catch (Exception e) {
 			LOGGER.error("Error executing addRank command: {}", e.getMessage());
@@ -410,14 +605,20 @@ public class TimedRankup implements ModInitializer {
 		}
 	}
 
-	private int updateRank(ServerCommandSource source, String oldName, String newName, int playtime) {
+	// A negative recentPlaytime keeps the rank's recent threshold as it is; its requirement is always kept
+	private int updateRank(ServerCommandSource source, String oldName, String newName, int playtime, int recentPlaytime, int days) {
 		try {
-			for (RankConfig rankConfig : rankConfigs) {
-				if (rankConfig.name.equals(oldName)) {
-					rankConfig.name = newName; // Update the name
-					rankConfig.playtimeThreshold = playtime; // Update the playtime threshold
-					saveConfig();
-					source.sendFeedback(() -> Text.of("Rank updated: " + oldName + " renamed to " + newName + " with new playtime threshold: " + playtime + " seconds"), true); // Update message to include seconds
+			RankupConfig config = engine.config();
+			List<RankupConfig.Rank> ranks = new ArrayList<>(config.ranks());
+			for (int i = 0; i < ranks.size(); i++) {
+				RankupConfig.Rank old = ranks.get(i);
+				if (old.name().equals(oldName)) {
+					RankupConfig.Rank rank = recentPlaytime < 0
+							? new RankupConfig.Rank(newName, playtime, old.recentPlaytimeThreshold(), old.recentWindowDays(), old.requirement())
+							: new RankupConfig.Rank(newName, playtime, recentPlaytime, days, old.requirement());
+					ranks.set(i, rank); // Update the name and playtime threshold
+					publishRanks(config, ranks);
+					source.sendFeedback(() -> Text.of("Rank updated: " + oldName + " renamed to " + newName + " with new playtime threshold: " + playtime + " seconds" + describeConditions(rank)), true); // Update message to include seconds
 					return 1;
 				}
 			}
@@ -432,16 +633,17 @@ public class TimedRankup implements ModInitializer {
 
 	private int removeRank(ServerCommandSource source, String name) {
 		try {
-			RankConfig removedRank = null;
-			for (RankConfig rankConfig : rankConfigs) {
-				if (rankConfig.name.equals(name)) {
-					removedRank = rankConfig;
-					break;
+			RankupConfig config = engine.config();
+			List<RankupConfig.Rank> ranks = new ArrayList<>(config.ranks());
+			int index = -1;
+			for (int i = 0; i < ranks.size() && index < 0; i++) {
+				if (ranks.get(i).name().equals(name)) {
+					index = i;
 				}
 			}
-			if (removedRank != null) {
-				rankConfigs.remove(removedRank);
-				saveConfig();
+			if (index >= 0) {
+				ranks.remove(index);
+				publishRanks(config, ranks);
 				source.sendFeedback(() -> Text.of("Rank removed: " + name), true);
 				return 1;
 			} else {
@@ -456,51 +658,138 @@ public class TimedRankup implements ModInitializer {
 	}
 
 	private int listRanks(ServerCommandSource source) {
-		try {
-			if (!rankConfigs.isEmpty()) {
-				source.sendFeedback(() -> Text.of("Ranks:"), false);
-				for (RankConfig rankConfig : rankConfigs) {
-					source.sendFeedback(() -> Text.of("- " + rankConfig.name + " - Playtime Threshold: " + rankConfig.playtimeThreshold + " seconds"), false); // Update message to include seconds
-				}
-			} else {
-				source.sendFeedback(() -> Text.of("No ranks configured."), false);
+		RankupConfig config = engine.config();
+		return replyOffThread(source, () -> {
+			List<RankupConfig.Rank> ranks = config.ranks();
+			if (ranks.isEmpty()) {
+				return List.of("No ranks configured.");
 			}
-			return 1;
-		} catch (Exception e) {
-			LOGGER.error("Error executing listRanks command: {}", e.getMessage());
-			source.sendFeedback(() -> Text.of("An unexpected error occurred while executing the command. Please check server logs for details."), false);
+			List<String> lines = new ArrayList<>(ranks.size() + 1);
+			lines.add("Ranks:");
+			for (RankupConfig.Rank rank : ranks) {
+				lines.add("- " + rank.name() + " - Playtime Threshold: " + rank.playtimeThreshold() + " seconds" + describeConditions(rank)); // Update message to include seconds
+			}
+			return lines;
+		});
+	}
+
+	private static String describeConditions(RankupConfig.Rank rank) {
+		String recent = rank.recentPlaytimeThreshold() <= 0 ? ""
+				: ", " + rank.recentPlaytimeThreshold() + " seconds within the last " + rank.recentWindowDays() + (rank.recentWindowDays() == 1 ? " day" : " days");
+		return rank.requirement() != null ? recent + ", requires " + rank.requirement() : recent;
+	}
+
+	// Renders a read-only command's reply from immutable state on the command thread; only the finished lines go
+	// back to the server thread to be sent
+	private int replyOffThread(ServerCommandSource source, Supplier<List<String>> render) {
+		MinecraftServer server = source.getServer();
+		commandExecutor.execute(() -> {
+			List<String> lines;
+			try {
+				lines = render.get();
+			} catch (RuntimeException e) {
+				LOGGER.error("Error executing command: {}", e.getMessage());
+				lines = List.of("An unexpected error occurred while executing the command. Please check server logs for details.");
+			}
+			sendLines(server, source, lines);
+		});
+		return 1;
+	}
+
+	private void sendLines(MinecraftServer server, ServerCommandSource source, List<String> lines) {
+		server.execute(() -> {
+			for (String line : lines) {
+				source.sendFeedback(() -> Text.of(line), false);
+			}
+		});
+	}
+
+	// Reads the world's vanilla statistics off-thread and merges them in on the server thread: "max" raises players to
+	// their vanilla playtime, "sum" adds it to what TimedRankup recorded
+	private int importVanillaStats(ServerCommandSource source, boolean sum) {
+		if (!importRunning.compareAndSet(false, true)) {
+			source.sendFeedback(() -> Text.of("An import is already running."), false);
 			return 0;
 		}
+		MinecraftServer server = source.getServer();
+		Path statsDirectory = server.getSavePath(WorldSavePath.STATS);
+		source.sendFeedback(() -> Text.of("Importing playtime from " + statsDirectory + "..."), true);
+		long start = System.nanoTime();
+		VanillaStatsImporter importer = new VanillaStatsImporter(statsDirectory, Runtime.getRuntime().availableProcessors(),
+				(filesRead, totalFiles) -> server.execute(() -> source.sendFeedback(() -> Text.of("Read " + filesRead + " of " + totalFiles + " stats files"), false)));
+		importer.start().whenComplete((result, error) -> server.execute(() -> {
+			importRunning.set(false);
+			if (error != null) {
+				LOGGER.error("Error importing vanilla statistics: {}", error.getMessage());
+				source.sendFeedback(() -> Text.of("The import failed. Please check server logs for details."), false);
+				return;
+			}
+			int changed = engine.importPlaytime(result.seconds, sum);
+			long millis = (System.nanoTime() - start) / 1_000_000L;
+			LOGGER.info("Imported vanilla playtime of {} players from {} stats files in {} ms", changed, result.files, millis);
+			source.sendFeedback(() -> Text.of("Imported playtime for " + changed + " of " + result.seconds.size() + " players from " + result.files
+					+ " stats files in " + millis + " ms" + (result.unreadableFiles > 0 ? " (" + result.unreadableFiles + " unreadable)" : "")), true);
+		}));
+		return 1;
 	}
-	private void grantRank(ServerPlayerEntity player) {
+
+	// Metrics are safe to read from any thread
+	private int showStats(ServerCommandSource source) {
+		return replyOffThread(source, () -> {
+			List<String> summary = metrics.summary();
+			List<String> lines = new ArrayList<>(summary.size() + 1);
+			lines.add("TimedRankup stats:");
+			for (String line : summary) {
+				lines.add("- " + line);
+			}
+			return lines;
+		});
 	}
 
+	// Checks every known player, online or not, against the current ladder; the checks and promotions run off-thread
+	// and report back here
 	private int forceUpgrade(ServerCommandSource source) {
-		try {
-			MinecraftServer server = source.getServer();
-			if (server != null) {
-				server.getPlayerManager().getPlayerList().forEach(this::grantRank);
-				source.sendFeedback(() -> Text.of("Forced rank upgrade process executed for all online players."), true);
-				return 1;
-			} else {
-				LOGGER.error("Server is not available");
-				source.sendFeedback(() -> Text.of("An unexpected error occurred while executing the command. Please check server logs for details."), false);
-				return 0;
+		MinecraftServer server = source.getServer();
+		RankReevaluation reevaluation = engine.reevaluateAll(settings.bulkCheckThreads, settings.bulkPromotionsPerSecond,
+				(playersChecked, totalPlayers, promoted) -> server.execute(() -> source.sendFeedback(() -> Text.of("Checked " + playersChecked + " of " + totalPlayers + " players, " + promoted + " promoted so far"), false)));
+		if (reevaluation == null) {
+			source.sendFeedback(() -> Text.of("A rank upgrade is already running, or LuckPerms is not available."), false);
+			return 0;
+		}
+		source.sendFeedback(() -> Text.of("Checking the ranks of all players. Use /timedrankup forceupgrade cancel to stop."), true);
+		long start = System.nanoTime();
+		reevaluation.start().whenComplete((result, error) -> server.execute(() -> {
+			if (error != null) {
+				LOGGER.error("Error executing forceUpgrade command: {}", error.getMessage());
+				source.sendFeedback(() -> Text.of("The rank upgrade failed. Please check server logs for details."), false);
+				return;
 			}
-		} catch (Exception e) {
-			LOGGER.error("Error executing forceUpgrade command: {}", e.getMessage());
-			source.sendFeedback(() -> Text.of("An unexpected error occurred while executing the command. Please check server logs for details."), false);
+			long seconds = (System.nanoTime() - start) / 1_000_000_000L;
+			String summary = (result.cancelled ? "Rank upgrade cancelled" : "Rank upgrade finished") + " after " + seconds + " seconds: checked "
+					+ result.checked + " of " + result.players + " players, promoted " + result.promoted
+					+ (result.failed > 0 ? ", " + result.failed + " failed" : "") + ", " + result.excluded + " excluded, "
+					+ result.online + " online players left to the regular checks" + (result.unknown > 0 ? ", " + result.unknown + " unknown to LuckPerms" : "");
+			LOGGER.info(summary);
+			source.sendFeedback(() -> Text.of(summary), true);
+		}));
+		return 1;
+	}
+
+	private int cancelForceUpgrade(ServerCommandSource source) {
+		if (!engine.cancelReevaluation()) {
+			source.sendFeedback(() -> Text.of("No rank upgrade is running."), false);
 			return 0;
 		}
+		source.sendFeedback(() -> Text.of("Cancelling the rank upgrade..."), true);
+		return 1;
 	}
 
 	private int viewOwnPlaytime(ServerCommandSource source) {
 		if (source.getEntity() instanceof ServerPlayerEntity) {
 			ServerPlayerEntity player = (ServerPlayerEntity) source.getEntity();
 			UUID playerId = player.getUuid();
-			long playtime = playerPlaytimes.getOrDefault(playerId, 0L);
-			source.sendFeedback(() -> Text.of("Your total playtime: " + formatPlaytime(playtime)), false);
-			return 1;
+			// Live playtime may be read from any thread
+			return replyOffThread(source, () -> List.of("Your total playtime: " + formatPlaytime(engine.playtime(playerId)), formatRecentPlaytime(playerId)));
 		} else {
 			source.sendFeedback(() -> Text.of("This command can only be executed by players."), false);
 			return 0;
@@ -508,55 +797,112 @@ public class TimedRankup implements ModInitializer {
 	}
 
 	private int viewPlayerPlaytime(ServerCommandSource source, String playerName) {
-		Optional<GameProfile> playerId = userCache.findByName(playerName);
-		if (playerId.isPresent()) {
-			long playtime = playerPlaytimes.getOrDefault(playerId, 0L);
-			source.sendFeedback(() -> Text.of(playerName + "'s total playtime: " + formatPlaytime(playtime)), false);
+		UUID playerId = nameIndex.get(playerName);
+		if (playerId != null) {
+			sendPlayerPlaytime(source, playerName, playerId);
 			return 1;
-		} else {
+		}
+		MinecraftServer server = source.getServer();
+		UserCache cache = server.getUserCache();
+		if (cache == null) {
 			source.sendFeedback(() -> Text.of("Player not found: " + playerName), false);
 			return 0;
 		}
+		// Never joined since names were indexed; the server's user cache may have to ask Mojang, so not on this thread
+		nameIndex.lookup(playerName, name -> cache.findByName(name).map(GameProfile::getId).orElse(null), server::execute, resolved -> {
+			if (resolved != null) {
+				sendPlayerPlaytime(source, playerName, resolved);
+			} else {
+				source.sendFeedback(() -> Text.of("Player not found: " + playerName), false);
+			}
+		});
+		return 1;
 	}
 
-	private String formatPlaytime(long playtimeInSeconds) {
-		long hours = playtimeInSeconds / 3600;
-		long minutes = (playtimeInSeconds % 3600) / 60;
-		long seconds = playtimeInSeconds % 60;
-		return String.format("%d hours, %d minutes, %d seconds", hours, minutes, seconds);
+	// Offline players may have to be read from the storage, so the reply can come a little later. It is rendered on
+	// the command thread either way.
+	private void sendPlayerPlaytime(ServerCommandSource source, String playerName, UUID playerId) {
+		MinecraftServer server = source.getServer();
+		engine.loadPlaytime(playerId, commandExecutor, playtime -> sendLines(server, source, playtime >= 0
+				? List.of(playerName + "'s total playtime: " + formatPlaytime(playtime), formatRecentPlaytime(playerId))
+				: List.of("Could not read the playtime of " + playerName + ". Please check server logs for details.")));
 	}
 
-	private boolean isPlayerExcluded(ServerPlayerEntity player) {
-		if (exclusions == null || exclusions.excludedGroups == null || exclusions.excludedGroups.isEmpty()) {
-			return false; // No exclusions configured
+	private int viewLeaderboard(ServerCommandSource source, int page) {
+		PlaytimeLeaderboard leaderboard = engine.leaderboard();
+		int pages = Math.max((leaderboard.size() + LEADERBOARD_PAGE_SIZE - 1) / LEADERBOARD_PAGE_SIZE, 1);
+		if (page > pages) {
+			source.sendFeedback(() -> Text.of("There are only " + pages + " pages of players."), false);
+			return 0;
 		}
+		// Only the page itself is taken from the leaderboard here; names are looked up and the lines rendered off-thread
+		int first = (page - 1) * LEADERBOARD_PAGE_SIZE;
+		List<UUID> playerIds = new ArrayList<>(LEADERBOARD_PAGE_SIZE);
+		long[] playtimes = new long[LEADERBOARD_PAGE_SIZE];
+		leaderboard.forEachInRange(first, LEADERBOARD_PAGE_SIZE, (playerId, playtime) -> {
+			playtimes[playerIds.size()] = playtime;
+			playerIds.add(playerId);
+		});
+		MinecraftServer server = source.getServer();
+		return replyOffThread(source, () -> {
+			List<String> lines = new ArrayList<>(playerIds.size() + 1);
+			lines.add("Top playtime (page " + page + " of " + pages + "):");
+			for (int i = 0; i < playerIds.size(); i++) {
+				lines.add("#" + (first + i + 1) + " " + playerName(server, playerIds.get(i)) + " - " + formatPlaytime(playtimes[i]));
+			}
+			return lines;
+		});
+	}
 
-		LuckPerms luckPerms = LuckPermsProvider.get();
-		if (luckPerms == null) {
-			LOGGER.error("LuckPerms is not initialized.");
-			return false; // Unable to determine exclusion status
+	private int viewOwnLeaderboardPosition(ServerCommandSource source) {
+		if (!(source.getEntity() instanceof ServerPlayerEntity)) {
+			source.sendFeedback(() -> Text.of("This command can only be executed by players."), false);
+			return 0;
 		}
-
-		User user = luckPerms.getUserManager().getUser(player.getName().getString());
-		if (user == null) {
-			LOGGER.error("User '{}' not found.", player.getName().getString());
-			return false; // Unable to determine exclusion status
+		ServerPlayerEntity player = (ServerPlayerEntity) source.getEntity();
+		PlaytimeLeaderboard leaderboard = engine.leaderboard();
+		int position = leaderboard.position(player.getUuid());
+		if (position == 0) {
+			source.sendFeedback(() -> Text.of("You are not on the leaderboard yet."), false);
+			return 0;
 		}
+		int players = leaderboard.size();
+		source.sendFeedback(() -> Text.of("Your position is #" + position + " of " + players + "."), false);
+		return 1;
+	}
 
-		List<Group> inheritedGroups = (List<Group>) user.getInheritedGroups(QueryOptions.nonContextual());
-		for (Group group : inheritedGroups) {
-			if (exclusions.excludedGroups.contains(group.getName())) {
-				return true; // Player belongs to an excluded group
-			}
+	// Last name the player joined under, or what the server's user cache knows about them. Safe off the server thread;
+	// the user cache only reads what it already holds for a UUID.
+	private String playerName(MinecraftServer server, UUID playerId) {
+		String indexed = nameIndex.name(playerId);
+		if (indexed != null) {
+			return indexed;
 		}
+		UserCache cache = server.getUserCache();
+		Optional<GameProfile> profile = cache != null ? cache.getByUuid(playerId) : Optional.empty();
+		return profile.map(GameProfile::getName).orElse(playerId.toString());
+	}
+
+	// Recent playtime is kept for every player, online or not, so it never needs the storage
+	private String formatRecentPlaytime(UUID playerId) {
+		return "Last 7 days: " + formatPlaytime(engine.recentPlaytime(playerId, 7)) + ", last " + PlaytimeHistory.MAX_WINDOW_DAYS + " days: "
+				+ formatPlaytime(engine.recentPlaytime(playerId, PlaytimeHistory.MAX_WINDOW_DAYS));
+	}
 
-		return false; // Player does not belong to any excluded group
+	private String formatPlaytime(long playtimeInSeconds) {
+		long hours = playtimeInSeconds / 3600;
+		long minutes = (playtimeInSeconds % 3600) / 60;
+		long seconds = playtimeInSeconds % 60;
+		return String.format("%d hours, %d minutes, %d seconds", hours, minutes, seconds);
 	}
 
 	// Model classes for configuration
 	private static class RankConfig {
 		private String name;
 		private int playtimeThreshold;
+		private Integer recentPlaytimeThreshold; // Optional: seconds to play within the last recentWindowDays days
+		private Integer recentWindowDays;
+		private JsonElement requires; // Optional: see RankRequirement
 
 		public RankConfig(String name, int playtimeThreshold) {
 			this.name = name;
@@ -572,6 +918,41 @@ public class TimedRankup implements ModInitializer {
 		}
 	}
 
+	private static class SettingsConfig {
+		private int saveIntervalSeconds = 15; // How often the playtime of online players is written to disk
+		private int metricsExportIntervalSeconds = 60; // How often metrics.prom is rewritten; 0 disables it
+		private int cachedOfflinePlayers = 1000; // Players who left whose record stays in memory; older ones are read from storage again
+		private int bulkCheckThreads = 4; // Players /timedrankup forceupgrade loads from LuckPerms at once
+		private int bulkPromotionsPerSecond = 20; // Rate at which /timedrankup forceupgrade writes promotions to LuckPerms
+		private StorageSettings storage = new StorageSettings();
+		private HttpSettings http = new HttpSettings();
+
+		public SettingsConfig() {
+		}
+	}
+
+	private static class HttpSettings {
+		private boolean enabled = false; // Read-only JSON endpoint for dashboards, see PlaytimeQueryServer
+		private String bindAddress = "127.0.0.1";
+		private int port = 8765;
+		private int threads = 2;
+		private int snapshotIntervalSeconds = 10; // How often the data it serves is refreshed
+
+		public HttpSettings() {
+		}
+	}
+
+	private static class StorageSettings {
+		private String type = "local"; // "local" for playtime.dat, or "jdbc" to share playtime between servers through a database
+		private String jdbcUrl = "jdbc:sqlite:config/TimedRankup/playtime.db";
+		private String username = "";
+		private String password = "";
+		private int poolSize = 2;
+
+		public StorageSettings() {
+		}
+	}
+
 	private static class ExclusionConfig {
 		private List<String> excludedGroups;
 
@@ -0,0 +1,183 @@
+package net.nadar.timedrankup;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+// Reads the playtime vanilla recorded for every player from the world's stats/<uuid>.json files, for servers that
+// ran before TimedRankup was installed. The files are split across a fork-join pool and each one is streamed only
+// until the play time statistic turns up, without building a JSON tree.
+public class VanillaStatsImporter {
+
+	private static final Logger LOGGER = LogManager.getLogger();
+	private static final int FILES_PER_TASK = 64;
+	private static final long PROGRESS_INTERVAL_NANOS = 1_000_000_000L;
+	private static final long NOT_FOUND = -1;
+	private static final long UNREADABLE = -2;
+
+	private final Path statsDirectory;
+	private final int parallelism;
+	private final ProgressListener progress;
+	private final AtomicInteger filesRead = new AtomicInteger();
+	private final AtomicLong lastProgress = new AtomicLong(System.nanoTime());
+
+	public VanillaStatsImporter(Path statsDirectory, int parallelism, ProgressListener progress) {
+		this.statsDirectory = statsDirectory;
+		this.parallelism = parallelism;
+		this.progress = progress;
+	}
+
+	// Reads every stats file on a pool of its own and completes with each player's playtime in seconds. Players
+	// whose file has no play time statistic are left out.
+	public CompletableFuture<Result> start() {
+		ForkJoinPool pool = new ForkJoinPool(parallelism);
+		CompletableFuture<Result> result = CompletableFuture.supplyAsync(this::read, pool);
+		result.whenComplete((ignored, error) -> pool.shutdown());
+		return result;
+	}
+
+	private Result read() {
+		List<Path> files = new ArrayList<>();
+		List<UUID> playerIds = new ArrayList<>();
+		try (Stream<Path> entries = Files.list(statsDirectory)) {
+			entries.forEach(file -> {
+				String name = file.getFileName().toString();
+				if (!name.endsWith(".json")) {
+					return;
+				}
+				try {
+					playerIds.add(UUID.fromString(name.substring(0, name.length() - ".json".length())));
+					files.add(file);
+				} catch (IllegalArgumentException e) {
+					// Not a player's stats file
+				}
+			});
+		} catch (IOException e) {
+			throw new IllegalStateException("Could not list " + statsDirectory + ": " + e.getMessage(), e);
+		}
+
+		// Each task writes only its own slots, so the workers never contend
+		long[] ticks = new long[files.size()];
+		new ReadTask(files, ticks, 0, files.size()).invoke();
+
+		Map<UUID, Long> seconds = new HashMap<>();
+		int unreadable = 0;
+		for (int i = 0; i < ticks.length; i++) {
+			if (ticks[i] >= 0) {
+				seconds.put(playerIds.get(i), ticks[i] / 20);
+			} else if (ticks[i] == UNREADABLE) {
+				unreadable++;
+			}
+		}
+		return new Result(seconds, files.size(), unreadable);
+	}
+
+	// Ticks of the play time statistic, NOT_FOUND if the file has none, or UNREADABLE
+	private static long readPlayTicks(Path file) {
+		try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8);
+			 JsonReader json = new JsonReader(reader)) {
+			// {"stats": {"minecraft:custom": {"minecraft:play_time": 123456, ...}, ...}, "DataVersion": 3465}
+			json.beginObject();
+			while (json.hasNext()) {
+				if (!json.nextName().equals("stats") || json.peek() != JsonToken.BEGIN_OBJECT) {
+					json.skipValue();
+					continue;
+				}
+				json.beginObject();
+				while (json.hasNext()) {
+					if (!json.nextName().equals("minecraft:custom") || json.peek() != JsonToken.BEGIN_OBJECT) {
+						json.skipValue();
+						continue;
+					}
+					json.beginObject();
+					while (json.hasNext()) {
+						String stat = json.nextName();
+						// Before 1.17 the same statistic was called play_one_minute, though it also counted ticks
+						if ((stat.equals("minecraft:play_time") || stat.equals("minecraft:play_one_minute")) && json.peek() == JsonToken.NUMBER) {
+							return Math.max(json.nextLong(), 0);
+						}
+						json.skipValue();
+					}
+					return NOT_FOUND;
+				}
+				return NOT_FOUND;
+			}
+			return NOT_FOUND;
+		} catch (IOException | RuntimeException e) {
+			LOGGER.warn("Skipping unreadable stats file {}: {}", file.getFileName(), e.getMessage());
+			return UNREADABLE;
+		}
+	}
+
+	// Reports at most once per interval, from whichever worker gets there first
+	private void fileRead(int totalFiles) {
+		int read = filesRead.incrementAndGet();
+		long now = System.nanoTime();
+		long last = lastProgress.get();
+		if (now - last >= PROGRESS_INTERVAL_NANOS && lastProgress.compareAndSet(last, now)) {
+			progress.onProgress(read, totalFiles);
+		}
+	}
+
+	private final class ReadTask extends RecursiveAction {
+		private final List<Path> files;
+		private final long[] ticks;
+		private final int from;
+		private final int to;
+
+		private ReadTask(List<Path> files, long[] ticks, int from, int to) {
+			this.files = files;
+			this.ticks = ticks;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from <= FILES_PER_TASK) {
+				for (int i = from; i < to; i++) {
+					ticks[i] = readPlayTicks(files.get(i));
+					fileRead(files.size());
+				}
+				return;
+			}
+			int middle = (from + to) >>> 1;
+			invokeAll(new ReadTask(files, ticks, from, middle), new ReadTask(files, ticks, middle, to));
+		}
+	}
+
+	// Called from the pool's threads
+	public interface ProgressListener {
+		void onProgress(int filesRead, int totalFiles);
+	}
+
+	public static final class Result {
+		public final Map<UUID, Long> seconds; // Playtime of every player whose file had the statistic
+		public final int files;
+		public final int unreadableFiles;
+
+		private Result(Map<UUID, Long> seconds, int files, int unreadableFiles) {
+			this.seconds = seconds;
+			this.files = files;
+			this.unreadableFiles = unreadableFiles;
+		}
+	}
+}
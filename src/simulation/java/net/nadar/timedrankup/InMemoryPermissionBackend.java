@@ -0,0 +1,75 @@
+package net.nadar.timedrankup;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+// Stand-in for LuckPerms: every player has exactly one parent group, users are only loaded while they are online,
+// and a parent change is reported to the listeners straight away, as LuckPerms does with UserDataRecalculateEvent
+public class InMemoryPermissionBackend implements PermissionBackend {
+
+	private final String defaultGroup;
+	private final Map<UUID, String> parentGroups = new ConcurrentHashMap<>();
+	private final Set<UUID> loadedUsers = ConcurrentHashMap.newKeySet();
+	private final List<ChangeListener> listeners = new CopyOnWriteArrayList<>();
+
+	public InMemoryPermissionBackend(String defaultGroup) {
+		this.defaultGroup = defaultGroup;
+	}
+
+	public void load(UUID playerId) {
+		loadedUsers.add(playerId);
+	}
+
+	public void unload(UUID playerId) {
+		if (loadedUsers.remove(playerId)) {
+			for (ChangeListener listener : listeners) {
+				listener.onUserUnloaded(playerId);
+			}
+		}
+	}
+
+	public void setParentGroupQuietly(UUID playerId, String group) {
+		parentGroups.put(playerId, group);
+	}
+
+	public String parentGroup(UUID playerId) {
+		return parentGroups.getOrDefault(playerId, defaultGroup);
+	}
+
+	@Override
+	public List<String> inheritedGroups(UUID playerId) {
+		if (!loadedUsers.contains(playerId)) {
+			return null;
+		}
+		return List.of(parentGroup(playerId));
+	}
+
+	@Override
+	public CompletableFuture<List<String>> loadInheritedGroups(UUID playerId) {
+		return CompletableFuture.completedFuture(List.of(parentGroup(playerId)));
+	}
+
+	@Override
+	public CompletableFuture<Void> setParentGroup(UUID playerId, String group) {
+		parentGroups.put(playerId, group);
+		for (ChangeListener listener : listeners) {
+			listener.onUserChanged(playerId);
+		}
+		return CompletableFuture.completedFuture(null);
+	}
+
+	@Override
+	public void subscribe(ChangeListener listener) {
+		listeners.add(listener);
+	}
+
+	@Override
+	public void close() {
+		listeners.clear();
+	}
+}
@@ -0,0 +1,350 @@
+package net.nadar.timedrankup;
+
+import com.google.gson.JsonParser;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.stream.Stream;
+
+// Replays players joining and leaving over simulated days against RankupEngine on a virtual clock, with an
+// in-memory permission backend and the real journal and store in a temporary directory. Players come and go with
+// exponentially distributed sessions and breaks; on the middle day an admin adds a rank above the ladder, as
+// "/timedrankup addrank" would. One rank also asks for recent playtime, read from a history on the same clock, and
+// another can be reached early through a jump statistic that online players' counters feed in every few seconds.
+// Run with ./gradlew simulate --args="--players 500 --days 30"; ./gradlew check runs a short one as
+// simulateAllocations.
+//
+// Options: --players N, --days N, --seed N, --tick-millis N (50 is a real server tick), --session-minutes N (mean
+// session length), --break-minutes N (mean time offline between sessions), --storage local|sqlite (sqlite needs
+// the SQLite JDBC driver, which the simulation source set has), --cached-players N (players who left whose record
+// stays in memory). Exits with 1 if the engine's records disagree with the storage, if the history read back
+// disagrees with it over runs that fit in the history's longest window, if a player reached a rank early without
+// the statistic for it, or if a tick in which nothing but rank checks happened allocated anything. The persistence
+// worker runs in real time while the clock is virtual, so with SQLite, writes and loads land much later in
+// simulated time than they would on a server and fewer promotions happen.
+public class LoadSimulation {
+
+	private static final long NANOS_PER_SECOND = 1_000_000_000L;
+	private static final long NANOS_PER_HOUR = 3600 * NANOS_PER_SECOND;
+	private static final String DEFAULT_GROUP = "default";
+	private static final long START_EPOCH_MILLIS = 1_700_000_000_000L; // Wall clock of the history at virtual time 0
+	private static final long STAT_POLL_NANOS = 5 * NANOS_PER_SECOND; // As often as TimedRankup reads statistics
+	private static final long REGULAR_JUMPS = 3000; // Jumps that get a player to Regular before 20 hours of playtime
+
+	private final int players;
+	private final int days;
+	private final long tickNanos;
+	private final double meanSessionNanos;
+	private final double meanBreakNanos;
+	private final Random random;
+	private final boolean sqlite;
+	private final int cachedPlayers;
+	private final com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+	private final long threadId = Thread.currentThread().getId();
+	// Tasks the engine hands back to the "server thread"; drained at the start of every tick like MinecraftServer does
+	private final Queue<Runnable> serverTasks = new ConcurrentLinkedQueue<>();
+	private long virtualNanos = 0;
+	private long engineAllocatedBytes = 0;
+
+	private LoadSimulation(Map<String, String> options) {
+		this.players = (int) option(options, "players", 500);
+		this.days = (int) option(options, "days", 30);
+		this.tickNanos = option(options, "tick-millis", 50) * 1_000_000L;
+		this.meanSessionNanos = option(options, "session-minutes", 90) * 60 * NANOS_PER_SECOND;
+		this.meanBreakNanos = option(options, "break-minutes", 600) * 60 * NANOS_PER_SECOND;
+		this.random = new Random(option(options, "seed", 1));
+		this.sqlite = "sqlite".equals(options.getOrDefault("storage", "local"));
+		this.cachedPlayers = (int) option(options, "cached-players", 100);
+	}
+
+	public static void main(String[] args) throws IOException {
+		Map<String, String> options = new HashMap<>();
+		for (int i = 0; i + 1 < args.length; i += 2) {
+			if (!args[i].startsWith("--")) {
+				throw new IllegalArgumentException("Expected an option, got " + args[i]);
+			}
+			options.put(args[i].substring(2), args[i + 1]);
+		}
+		new LoadSimulation(options).run();
+	}
+
+	private static long option(Map<String, String> options, String name, long defaultValue) {
+		String value = options.get(name);
+		return value != null ? Long.parseLong(value) : defaultValue;
+	}
+
+	private long epochMillis() {
+		return START_EPOCH_MILLIS + virtualNanos / 1_000_000L;
+	}
+
+	private PlaytimeStorage openStorage(Path directory, Metrics metrics) throws IOException {
+		if (sqlite) {
+			return new JdbcPlaytimeStorage("jdbc:sqlite:" + directory.resolve("playtime.db"), "", "", 2, metrics);
+		}
+		return new PlaytimeJournal(directory.resolve("playtime.dat"), directory.resolve("playtime.txt"), metrics);
+	}
+
+	private void run() throws IOException {
+		Path directory = Files.createTempDirectory("timedrankup-simulation");
+		Metrics metrics = new Metrics();
+		PlaytimeTable playtimes = new PlaytimeTable();
+		PlaytimeStorage storage = openStorage(directory, metrics);
+		Path historyFile = directory.resolve("history.dat");
+		PlaytimeHistory history = new PlaytimeHistory(historyFile, this::epochMillis);
+		RankupEngine engine = new RankupEngine(playtimes, new PlaytimePersistenceWorker(storage, metrics, history), history, metrics, () -> virtualNanos, 15, cachedPlayers);
+		storage.loadAll(engine::rankStoredPlaytime);
+		InMemoryPermissionBackend backend = new InMemoryPermissionBackend(DEFAULT_GROUP);
+
+		String[] rankNames = {DEFAULT_GROUP, "Member", "Regular", "Trusted", "Veteran"};
+		long[] thresholds = {0, 3600, 10 * 3600, 50 * 3600, 150 * 3600};
+		List<RankupConfig.Rank> ranks = new ArrayList<>();
+		for (int i = 0; i < rankNames.length; i++) {
+			ranks.add(new RankupConfig.Rank(rankNames[i], thresholds[i]));
+		}
+		// Regular comes at 20 hours, or at 10 with enough jumps; Trusted also needs 20 hours within the last week
+		ranks.set(2, new RankupConfig.Rank("Regular", thresholds[2], 0, 0, RankRequirement.parse(JsonParser.parseString(
+				"{\"any\": [{\"playtime\": 72000}, {\"stat\": \"minecraft:custom\", \"key\": \"minecraft:jump\", \"atLeast\": " + REGULAR_JUMPS + "}]}"))));
+		ranks.set(3, new RankupConfig.Rank("Trusted", thresholds[3], 20 * 3600, 7));
+		engine.setConfig(new RankupConfig(ranks, List.of("staff")));
+		engine.start(backend, serverTasks::add, (playerId, rankName, error) -> {
+		});
+
+		UUID[] playerIds = new UUID[players];
+		boolean[] online = new boolean[players];
+		long[] sessionStart = new long[players];
+		long[] nextEvent = new long[players];
+		long simulatedSeconds = 0; // Whole seconds of every finished session, what the engine should have recorded
+		PriorityQueue<Integer> events = new PriorityQueue<>(Comparator.comparingLong(player -> nextEvent[player]));
+		for (int i = 0; i < players; i++) {
+			playerIds[i] = new UUID(random.nextLong(), random.nextLong());
+			if (i % 100 == 0) {
+				backend.setParentGroupQuietly(playerIds[i], "staff");
+			}
+			nextEvent[i] = (long) (random.nextDouble() * meanBreakNanos);
+			events.add(i);
+		}
+		// Some players jump a lot, most hardly at all
+		long[] jumps = new long[players];
+		long[] jumpsPerPoll = new long[players];
+		for (int i = 0; i < players; i++) {
+			jumpsPerPoll[i] = random.nextInt(4) == 0 ? random.nextInt(20) : 0;
+		}
+		Runnable pollStats = () -> {
+			for (int i = 0; i < players; i++) {
+				if (online[i]) {
+					jumps[i] += jumpsPerPoll[i];
+					engine.updateStat(playerIds[i], 0, jumps[i]);
+				}
+			}
+		};
+		long lastStatPoll = 0;
+
+		long endNanos = days * 24L * NANOS_PER_HOUR;
+		long hours = endNanos / NANOS_PER_HOUR;
+		long[] allocatedPerHour = new long[(int) hours + 1];
+		// Ticks past the first hour in which nobody joined or left and nothing was saved, promoted or looked up in the
+		// permission backend; rank checks still run on them. The engine must not allocate anything on those.
+		long steadyTicks = 0;
+		long steadyTicksWithChecks = 0;
+		long steadyAllocatingTicks = 0;
+		long steadyAllocatedBytes = 0;
+		long queries = 0;
+		boolean ladderChanged = false;
+		long wallStart = System.nanoTime();
+
+		for (virtualNanos = 0; virtualNanos < endNanos; virtualNanos += tickNanos) {
+			long allocatedBefore = engineAllocatedBytes;
+			boolean quiet = serverTasks.isEmpty();
+			Runnable task;
+			while ((task = serverTasks.poll()) != null) {
+				runMeasured(task);
+			}
+
+			while (!events.isEmpty() && nextEvent[events.peek()] <= virtualNanos) {
+				int player = events.poll();
+				quiet = false;
+				UUID playerId = playerIds[player];
+				if (online[player]) {
+					runMeasured(() -> engine.onPlayerDisconnect(playerId));
+					backend.unload(playerId);
+					simulatedSeconds += (virtualNanos - sessionStart[player]) / NANOS_PER_SECOND;
+					nextEvent[player] = virtualNanos + exponential(meanBreakNanos);
+				} else {
+					backend.load(playerId);
+					runMeasured(() -> engine.onPlayerJoin(playerId));
+					runMeasured(() -> engine.playtime(playerId)); // Most players look at /playtime now and then
+					queries++;
+					if (player % 10 == 0) {
+						runMeasured(() -> engine.leaderboard().position(playerId)); // Some check /playtime rank
+						queries++;
+					}
+					sessionStart[player] = virtualNanos;
+					nextEvent[player] = virtualNanos + exponential(meanSessionNanos);
+				}
+				online[player] = !online[player];
+				events.add(player);
+			}
+
+			if (!ladderChanged && virtualNanos >= endNanos / 2) {
+				// An admin adds a rank above the ladder halfway through
+				RankupConfig config = engine.config();
+				List<RankupConfig.Rank> newRanks = new ArrayList<>(config.ranks());
+				newRanks.add(new RankupConfig.Rank("Legend", 200 * 3600));
+				runMeasured(() -> engine.setConfig(config.withRanks(newRanks)));
+				ladderChanged = true;
+				quiet = false;
+			}
+
+			if (virtualNanos - lastStatPoll >= STAT_POLL_NANOS) {
+				lastStatPoll = virtualNanos;
+				runMeasured(pollStats);
+			}
+
+			long saves = metrics.save.count();
+			long requested = metrics.promotionsRequested.get();
+			long misses = metrics.membershipMisses.get();
+			long checks = metrics.rankChecks.get();
+			long tickBytes = runMeasured(engine::tick);
+			if (quiet && virtualNanos >= NANOS_PER_HOUR && saves == metrics.save.count() && requested == metrics.promotionsRequested.get()
+					&& misses == metrics.membershipMisses.get()) {
+				steadyTicks++;
+				steadyTicksWithChecks += checks != metrics.rankChecks.get() ? 1 : 0;
+				steadyAllocatingTicks += tickBytes > 0 ? 1 : 0;
+				steadyAllocatedBytes += tickBytes;
+			}
+			allocatedPerHour[(int) (virtualNanos / NANOS_PER_HOUR)] += engineAllocatedBytes - allocatedBefore;
+		}
+
+		for (int i = 0; i < players; i++) {
+			if (online[i]) {
+				simulatedSeconds += (virtualNanos - sessionStart[i]) / NANOS_PER_SECOND;
+			}
+		}
+		engine.stop();
+		// Loads that were still on their way when the engine stopped complete here
+		Runnable task;
+		while ((task = serverTasks.poll()) != null) {
+			task.run();
+		}
+		long wallNanos = System.nanoTime() - wallStart;
+
+		// Read everything back from a fresh copy of the storage
+		PlaytimeTable stored = new PlaytimeTable();
+		PlaytimeStorage reopened = openStorage(directory, metrics);
+		reopened.loadAll(stored::put);
+		reopened.close();
+		long storedSeconds = 0;
+		int inMemory = 0;
+		boolean memoryMatches = true; // Records still in memory must agree with the storage
+		int[] playersPerRank = new int[rankNames.length + 2];
+		List<String> ladderNames = Arrays.asList("staff", DEFAULT_GROUP, "Member", "Regular", "Trusted", "Veteran", "Legend");
+		int earlyRegulars = 0; // Reached Regular or higher on jumps before 20 hours
+		boolean requirementsHeld = true;
+		for (int i = 0; i < players; i++) {
+			long storedPlaytime = stored.get(playerIds[i], 0L);
+			if (ladderNames.indexOf(backend.parentGroup(playerIds[i])) >= ladderNames.indexOf("Regular") && storedPlaytime < 72000) {
+				earlyRegulars++;
+				requirementsHeld &= jumps[i] >= REGULAR_JUMPS;
+			}
+			storedSeconds += storedPlaytime;
+			long recorded = playtimes.get(playerIds[i], -1L);
+			if (recorded >= 0) {
+				inMemory++;
+				memoryMatches &= recorded == storedPlaytime;
+			}
+			playersPerRank[ladderNames.indexOf(backend.parentGroup(playerIds[i]))]++;
+		}
+
+		// The leaderboard must list every player with playtime, ordered by their final totals
+		PlaytimeLeaderboard leaderboard = engine.leaderboard();
+		long[] previous = {Long.MAX_VALUE};
+		boolean[] ordered = {true};
+		leaderboard.forEachInRange(0, leaderboard.size(), (playerId, playtime) -> {
+			ordered[0] &= playtime <= previous[0] && playtime == stored.get(playerId, 0L);
+			previous[0] = playtime;
+		});
+		int ranked = 0;
+		for (UUID playerId : playerIds) {
+			if (stored.get(playerId, 0L) > 0 && leaderboard.position(playerId) > 0) {
+				ranked++;
+			}
+		}
+		int leaderboardSize = leaderboard.size();
+
+		// Runs that fit in the longest window have every second in the history, as read back from its file
+		PlaytimeHistory reloaded = new PlaytimeHistory(historyFile, this::epochMillis);
+		reloaded.load();
+		long historySeconds = 0;
+		boolean historyMatches = true;
+		for (UUID playerId : playerIds) {
+			long recent = reloaded.windowSum(playerId, PlaytimeHistory.MAX_WINDOW_DAYS);
+			historySeconds += recent;
+			historyMatches &= days >= PlaytimeHistory.MAX_WINDOW_DAYS || recent == stored.get(playerId, 0L);
+		}
+
+		System.out.printf("Simulated %d players over %d days in %d ticks of %d ms (%.1f s wall clock)%n",
+				players, days, endNanos / tickNanos, tickNanos / 1_000_000L, wallNanos / 1e9);
+		System.out.printf("Promotions: %d (%d failed), playtime queries: %d%n", metrics.promotionsSucceeded.get(), metrics.promotionsFailed.get(), queries);
+		StringBuilder distribution = new StringBuilder();
+		for (int i = 0; i < ladderNames.size(); i++) {
+			distribution.append(i == 0 ? "" : ", ").append(ladderNames.get(i)).append('=').append(playersPerRank[i]);
+		}
+		System.out.println("Final groups: " + distribution);
+		System.out.printf("Reached Regular on jumps before 20 hours: %d%s%n", earlyRegulars, requirementsHeld ? "" : " (WITHOUT THE JUMPS)");
+		boolean leaderboardConsistent = ordered[0] && ranked == leaderboardSize;
+		System.out.printf("Leaderboard: %d players ranked%s%n", leaderboardSize, leaderboardConsistent ? "" : " (OUT OF ORDER)");
+		System.out.printf("History: %d s within the last %d days for %d players%s%n", historySeconds, PlaytimeHistory.MAX_WINDOW_DAYS, reloaded.size(),
+				historyMatches ? "" : " (MISMATCH)");
+		boolean consistent = memoryMatches && storedSeconds == simulatedSeconds && leaderboardConsistent && historyMatches && requirementsHeld && steadyAllocatedBytes == 0;
+		System.out.printf("Playtime in storage: %d s, simulated: %d s; %d of %d players still in memory%s%n", storedSeconds, simulatedSeconds, inMemory, players,
+				consistent ? "" : " (MISMATCH)");
+		System.out.printf("Tick time: p50 %d ns, p99 %d ns, p99.9 %d ns, max %d ns (log2 buckets, upper bounds)%n",
+				metrics.tick.percentileNanos(0.5), metrics.tick.percentileNanos(0.99), metrics.tick.percentileNanos(0.999), metrics.tick.maxNanos());
+		System.out.printf("Rank checks: %d, membership cache hits/misses: %d/%d%n",
+				metrics.rankChecks.get(), metrics.membershipHits.get(), metrics.membershipMisses.get());
+		System.out.printf("Written to %s storage: %d playtime records (%d bytes) in %d writes (p99 %d ns)%n", sqlite ? "SQLite" : "local",
+				metrics.recordsWritten.get(), metrics.bytesWritten.get(), metrics.storageWrite.count(), metrics.storageWrite.percentileNanos(0.99));
+		long maxPerHour = 0;
+		for (long bytes : allocatedPerHour) {
+			maxPerHour = Math.max(maxPerHour, bytes);
+		}
+		System.out.printf("Allocated on the server thread by the engine: %d bytes total, %d bytes per simulated hour on average, %d at most%n",
+				engineAllocatedBytes, engineAllocatedBytes / Math.max(hours, 1), maxPerHour);
+		System.out.printf("Steady-state ticks: %d, %d of them with rank checks; %d bytes allocated in %d ticks%s%n", steadyTicks, steadyTicksWithChecks,
+				steadyAllocatedBytes, steadyAllocatingTicks, steadyAllocatedBytes == 0 ? "" : " (ALLOCATES)");
+
+		try (Stream<Path> files = Files.walk(directory)) {
+			files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+		}
+		if (!consistent) {
+			System.exit(1);
+		}
+	}
+
+	// Only the engine's own work is counted towards allocation, not the simulation's bookkeeping. Returns the bytes
+	// the work allocated.
+	private long runMeasured(Runnable work) {
+		long before = threads.getThreadAllocatedBytes(threadId);
+		work.run();
+		long allocated = threads.getThreadAllocatedBytes(threadId) - before;
+		engineAllocatedBytes += allocated;
+		return allocated;
+	}
+
+	private long exponential(double mean) {
+		return Math.max((long) (-Math.log(1 - random.nextDouble()) * mean), tickNanos);
+	}
+}